@@ -0,0 +1,79 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter.benchmark;
+
+import eu.europa.ec.dgc.partialvariablehashfilter.PartialVariableHashFilter;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adding {@link #BATCH} partial hashes one by one to a freshly loaded filter, the score is the time per batch.
+ * Every iteration runs one batch, so the filter never grows by more than a batch and stays below the overfill
+ * warning.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 10, batchSize = AddBenchmark.BATCH)
+@Measurement(iterations = 20, batchSize = AddBenchmark.BATCH)
+public class AddBenchmark {
+    static final int BATCH = 1000;
+
+    @Param({"1000", "100000", "10000000"})
+    public int elements;
+
+    @Param({"1", "4", "8", "16", "32"})
+    public int hashSize;
+
+    private byte[] data;
+    private byte[][] hashes;
+    private PartialVariableHashFilter filter;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        data = BenchmarkData.serializedFilter(elements, hashSize, elements + BATCH);
+        hashes = BenchmarkData.probes(data, 0);
+    }
+
+    @Setup(Level.Iteration)
+    public void reload() {
+        filter = new PartialVariableHashFilter(data);
+    }
+
+    @Benchmark
+    public PartialVariableHashFilter add() {
+        filter.add(hashes[index++ & (BenchmarkData.PROBES - 1)]);
+        return filter;
+    }
+}
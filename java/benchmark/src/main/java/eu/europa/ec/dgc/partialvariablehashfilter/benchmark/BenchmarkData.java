@@ -0,0 +1,90 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Deterministic test data of the benchmarks.
+ */
+final class BenchmarkData {
+    static final int PROBES = 1 << 12;
+    private static final int HEADER_SIZE = 11;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Creates a serialized version 1 filter with random partial hashes in random order.
+     *
+     * @param elements             number of partial hashes
+     * @param hashSize             bytes per partial hash
+     * @param definedElementAmount amount of elements the filter is declared for
+     * @return serialized filter
+     */
+    static byte[] serializedFilter(int elements, int hashSize, int definedElementAmount) {
+        return serializedFilter(elements, hashSize, definedElementAmount, elements * 31L + hashSize);
+    }
+
+    /**
+     * Creates a serialized version 1 filter with random partial hashes in random order.
+     *
+     * @param elements             number of partial hashes
+     * @param hashSize             bytes per partial hash
+     * @param definedElementAmount amount of elements the filter is declared for
+     * @param seed                 seed of the partial hashes, filters of different seeds hold different hashes
+     * @return serialized filter
+     */
+    static byte[] serializedFilter(int elements, int hashSize, int definedElementAmount, long seed) {
+        byte[] data = new byte[HEADER_SIZE + elements * hashSize];
+        new Random(seed).nextBytes(data);
+        ByteBuffer.wrap(data).putShort((short) 1).putFloat(0.001F).putInt(definedElementAmount).put((byte) hashSize);
+        return data;
+    }
+
+    /**
+     * Creates probes of a serialized filter, hits are copies of stored partial hashes, misses are random and only
+     * miss with high probability, which for 1 byte hashes is never the case.
+     *
+     * @param data     serialized filter
+     * @param hitRatio share of hits
+     * @return {@link #PROBES} probes in random order
+     */
+    static byte[][] probes(byte[] data, double hitRatio) {
+        int hashSize = data[HEADER_SIZE - 1];
+        int elements = (data.length - HEADER_SIZE) / hashSize;
+        Random random = new Random(PROBES + elements);
+        byte[][] probes = new byte[PROBES][];
+
+        for (int i = 0; i < PROBES; i++) {
+            if (random.nextDouble() < hitRatio) {
+                int offset = HEADER_SIZE + random.nextInt(elements) * hashSize;
+                probes[i] = Arrays.copyOfRange(data, offset, offset + hashSize);
+            } else {
+                probes[i] = new byte[hashSize];
+                random.nextBytes(probes[i]);
+            }
+        }
+        return probes;
+    }
+}
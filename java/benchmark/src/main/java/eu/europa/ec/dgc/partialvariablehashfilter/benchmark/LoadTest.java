@@ -0,0 +1,331 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter.benchmark;
+
+import eu.europa.ec.dgc.partialvariablehashfilter.PartialVariableHashFilter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test of concurrent lookups, simulating verifiers that check every certificate against a few filters.
+ * <p>
+ * Every caller repeatedly sends a request of some lookups in random filters and resubmits itself to the executor
+ * once the request is answered, so the number of callers is the number of requests in flight. With a fixed pool
+ * requests queue for the pool threads, with virtual threads every request runs in its own thread. Request latency is
+ * measured from submission and includes queueing. Allocation is the heap allocated by all threads of the JVM during
+ * the measurement, so it covers the executor and the creation of virtual threads as well as the lookups. It is only
+ * reported when the JVM measures the allocation of threads.
+ * <p>
+ * Options, lists are comma separated and every combination of filters, hitRatio, callers and threads is run:
+ * <pre>
+ * --filters=1,50           number of filters
+ * --elements=100000        partial hashes per filter
+ * --hashSize=8             bytes per partial hash
+ * --hitRatio=0.0,0.01      share of lookups of stored partial hashes
+ * --callers=1000           requests in flight
+ * --threads=virtual,pool   virtual threads (Java 21 or later) or a fixed pool
+ * --poolSize=N             threads of the fixed pool, by default the number of processors
+ * --lookups=3              lookups per request
+ * --warmup=2               seconds before measuring
+ * --duration=5             seconds of measurement
+ * </pre>
+ */
+public final class LoadTest {
+    private final Map<String, String> options = new HashMap<>();
+
+    private LoadTest(String[] args) {
+        options.put("filters", "1,50");
+        options.put("elements", "100000");
+        options.put("hashSize", "8");
+        options.put("hitRatio", "0.0,0.01");
+        options.put("callers", "1000");
+        options.put("threads", "virtual,pool");
+        options.put("poolSize", Integer.toString(Runtime.getRuntime().availableProcessors()));
+        options.put("lookups", "3");
+        options.put("warmup", "2");
+        options.put("duration", "5");
+
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            String name = separator > 2 && arg.startsWith("--") ? arg.substring(2, separator) : null;
+            if (name == null || !options.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+            options.put(name, arg.substring(separator + 1));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest(args).run();
+    }
+
+    private void run() throws Exception {
+        List<String> threadModes = new ArrayList<>();
+        for (String threads : options.get("threads").split(",")) {
+            ExecutorService executor = executor(threads);
+            if (executor == null) {
+                System.out.println("Skipping " + threads + " threads, virtual threads need Java 21 or later");
+            } else {
+                executor.shutdown();
+                threadModes.add(threads);
+            }
+        }
+
+        int elements = Integer.parseInt(options.get("elements"));
+        int hashSize = Integer.parseInt(options.get("hashSize"));
+        System.out.printf(Locale.ROOT, "Java %s, %d processors, %d elements of %d bytes per filter%n",
+            Runtime.version(), Runtime.getRuntime().availableProcessors(), elements, hashSize);
+        System.out.printf(Locale.ROOT, "%-8s %7s %8s %7s %12s %9s %9s %9s %9s %11s %10s%n", "threads", "filters",
+            "hitRatio", "callers", "lookups/s", "p50 us", "p99 us", "p99.9 us", "hits", "bytes/look", "alloc MB/s");
+
+        for (String filterCount : options.get("filters").split(",")) {
+            List<PartialVariableHashFilter> filters = new ArrayList<>();
+            List<byte[]> data = new ArrayList<>();
+            for (int i = 0; i < Integer.parseInt(filterCount); i++) {
+                data.add(BenchmarkData.serializedFilter(elements, hashSize, elements, i));
+                filters.add(new PartialVariableHashFilter(data.get(i)));
+            }
+
+            for (String hitRatio : options.get("hitRatio").split(",")) {
+                byte[][][] probes = new byte[filters.size()][][];
+                for (int i = 0; i < filters.size(); i++) {
+                    probes[i] = BenchmarkData.probes(data.get(i), Double.parseDouble(hitRatio));
+                }
+
+                for (String callers : options.get("callers").split(",")) {
+                    for (String threads : threadModes) {
+                        ExecutorService executor = executor(threads);
+                        try {
+                            Result result = measure(executor, filters, probes, Integer.parseInt(callers));
+                            System.out.printf(Locale.ROOT,
+                                "%-8s %7d %8s %7s %12.0f %9.1f %9.1f %9.1f %9.4f %11.1f %10.1f%n", threads,
+                                filters.size(), hitRatio, callers, result.lookupsPerSecond, result.latencyMicros(0.5),
+                                result.latencyMicros(0.99), result.latencyMicros(0.999), result.hitRatio(),
+                                result.bytesPerLookup(), result.allocatedMegabytesPerSecond());
+                        } finally {
+                            executor.shutdown();
+                            executor.awaitTermination(1, TimeUnit.MINUTES);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return executor of the mode, null when virtual threads are not available
+     */
+    private ExecutorService executor(String threads) throws ReflectiveOperationException {
+        if ("pool".equals(threads)) {
+            return Executors.newFixedThreadPool(Integer.parseInt(options.get("poolSize")));
+        }
+        if (!"virtual".equals(threads)) {
+            throw new IllegalArgumentException("Unknown threads " + threads + ", use virtual or pool");
+        }
+
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            // preview API of Java 19 and 20 without --enable-preview
+            if (e.getCause() instanceof UnsupportedOperationException) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    private Result measure(ExecutorService executor, List<PartialVariableHashFilter> filters, byte[][][] probes,
+                           int callerCount) throws InterruptedException {
+        System.gc();
+        long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("warmup")));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("duration")));
+        int lookups = Integer.parseInt(options.get("lookups"));
+
+        long measureStart = System.nanoTime() + warmupNanos;
+        long deadline = measureStart + durationNanos;
+        CountDownLatch finished = new CountDownLatch(callerCount);
+        List<Caller> callers = new ArrayList<>(callerCount);
+        for (int i = 0; i < callerCount; i++) {
+            Caller caller = new Caller(executor, filters, probes, lookups, measureStart, deadline, finished, i);
+            callers.add(caller);
+            caller.submit();
+        }
+
+        TimeUnit.NANOSECONDS.sleep(measureStart - System.nanoTime());
+        long allocatedBefore = allocatedBytes();
+        finished.await();
+        long windowNanos = System.nanoTime() - measureStart;
+        long allocatedAfter = allocatedBytes();
+        long allocated = allocatedBefore < 0 || allocatedAfter < 0 ? -1 : allocatedAfter - allocatedBefore;
+        return new Result(callers, durationNanos, allocated, windowNanos);
+    }
+
+    /**
+     * Heap allocated by all threads of the JVM so far. From Java 21 on this includes ended threads, which makes it
+     * work for virtual threads, before it sums the live threads, which is enough for a fixed pool.
+     *
+     * @return allocated bytes, -1 when the JVM does not measure the allocation of threads
+     */
+    private static long allocatedBytes() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+
+        try {
+            Method total = com.sun.management.ThreadMXBean.class.getMethod("getTotalThreadAllocatedBytes");
+            return (long) total.invoke(threads);
+        } catch (NoSuchMethodException e) {
+            long allocated = 0;
+            for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+                allocated += Math.max(0, bytes);
+            }
+            return allocated;
+        } catch (ReflectiveOperationException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Sends requests one after another, it is only run by one thread at a time.
+     */
+    private static final class Caller implements Runnable {
+        private final ExecutorService executor;
+        private final List<PartialVariableHashFilter> filters;
+        private final byte[][][] probes;
+        private final int lookups;
+        private final long measureStart;
+        private final long deadline;
+        private final CountDownLatch finished;
+        private final Histogram latency = new Histogram();
+        private final SplittableRandom random;
+        private long hits;
+        private long submitted;
+
+        private Caller(ExecutorService executor, List<PartialVariableHashFilter> filters, byte[][][] probes,
+                       int lookups, long measureStart, long deadline, CountDownLatch finished, long seed) {
+            this.executor = executor;
+            this.filters = filters;
+            this.probes = probes;
+            this.lookups = lookups;
+            this.measureStart = measureStart;
+            this.deadline = deadline;
+            this.finished = finished;
+            this.random = new SplittableRandom(seed);
+        }
+
+        private void submit() {
+            submitted = System.nanoTime();
+            executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            int requestHits = 0;
+            for (int i = 0; i < lookups; i++) {
+                int filter = random.nextInt(filters.size());
+                byte[] probe = probes[filter][random.nextInt(BenchmarkData.PROBES)];
+                requestHits += filters.get(filter).mightContain(probe) ? 1 : 0;
+            }
+
+            long answered = System.nanoTime();
+            if (submitted >= measureStart && answered <= deadline) {
+                latency.record(answered - submitted);
+                hits += requestHits;
+            }
+            if (answered < deadline) {
+                submit();
+            } else {
+                finished.countDown();
+            }
+        }
+    }
+
+    /**
+     * Merged measurements of all callers of one configuration.
+     */
+    private static final class Result {
+        private final Histogram latency = new Histogram();
+        private final long lookups;
+        private final long hits;
+        private final long allocatedBytes;
+        private final long windowNanos;
+        private final double lookupsPerSecond;
+
+        private Result(List<Caller> callers, long durationNanos, long allocatedBytes, long windowNanos) {
+            long lookupCount = 0;
+            long hitCount = 0;
+            for (Caller caller : callers) {
+                latency.add(caller.latency);
+                lookupCount += caller.latency.count() * caller.lookups;
+                hitCount += caller.hits;
+            }
+
+            this.lookups = lookupCount;
+            this.hits = hitCount;
+            this.allocatedBytes = allocatedBytes;
+            this.windowNanos = windowNanos;
+            this.lookupsPerSecond = lookupCount * 1e9 / durationNanos;
+        }
+
+        /**
+         * @return request latency at the quantile, at most 12.5% above the measured value
+         */
+        private double latencyMicros(double quantile) {
+            return latency.quantile(quantile) / 1000.0;
+        }
+
+        private double hitRatio() {
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        /**
+         * @return allocation per lookup answered in time, NaN when the allocation was not measured
+         */
+        private double bytesPerLookup() {
+            return lookups == 0 || allocatedBytes < 0 ? Double.NaN : (double) allocatedBytes / lookups;
+        }
+
+        /**
+         * @return allocation per second of the measurement until the last request ended, NaN when not measured
+         */
+        private double allocatedMegabytesPerSecond() {
+            return allocatedBytes < 0 ? Double.NaN : allocatedBytes * 1e9 / windowNanos / (1 << 20);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter.benchmark;
+
+import eu.europa.ec.dgc.partialvariablehashfilter.PartialVariableHashFilter;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single lookups with a given share of stored probes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LookupBenchmark {
+
+    @Param({"1000", "100000", "10000000"})
+    public int elements;
+
+    @Param({"1", "4", "8", "16", "32"})
+    public int hashSize;
+
+    @Param({"0.0", "0.5", "1.0"})
+    public double hitRatio;
+
+    private PartialVariableHashFilter filter;
+    private byte[][] probes;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        byte[] data = BenchmarkData.serializedFilter(elements, hashSize, elements);
+        filter = new PartialVariableHashFilter(data);
+        probes = BenchmarkData.probes(data, hitRatio);
+    }
+
+    @Benchmark
+    public boolean mightContain() {
+        return filter.mightContain(probes[index++ & (BenchmarkData.PROBES - 1)]);
+    }
+}
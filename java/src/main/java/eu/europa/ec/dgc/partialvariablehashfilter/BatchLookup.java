@@ -0,0 +1,133 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Looks up many probes at once: the probes are sorted and walked in ascending order against the sorted storage, each
+ * probe galloping forward from the position of the previous one.
+ */
+final class BatchLookup {
+    private final int recordSize;
+    private final byte[] probes;
+    private final int[] order;
+    private int validProbes;
+
+    /**
+     * @param recordSize bytes per record
+     * @param capacity   maximum number of probes
+     */
+    BatchLookup(int recordSize, int capacity) {
+        this.recordSize = recordSize;
+        this.probes = new byte[Math.multiplyExact(capacity, recordSize)];
+        this.order = new int[capacity];
+    }
+
+    /**
+     * Registers the probe with the given result index, copying its first record size bytes.
+     */
+    void add(int index, byte[] src, int offset) {
+        System.arraycopy(src, offset, probes, index * recordSize, recordSize);
+        order[validProbes++] = index;
+    }
+
+    /**
+     * Registers the probe with the given result index from an absolute buffer position.
+     */
+    void add(int index, ByteBuffer src, int offset) {
+        int start = index * recordSize;
+        for (int i = 0; i < recordSize; i++) {
+            probes[start + i] = src.get(offset + i);
+        }
+        order[validProbes++] = index;
+    }
+
+    /**
+     * Looks up all registered probes, results of probes that were not registered stay false.
+     *
+     * @param storage   sorted storage to search
+     * @param prefilter optional prefilter to drop probes before searching
+     * @param result    result per probe index
+     */
+    void lookup(HashStorage storage, BloomPrefilter prefilter, boolean[] result) {
+        if (prefilter != null) {
+            int retained = 0;
+            for (int i = 0; i < validProbes; i++) {
+                if (prefilter.mightContain(probes, order[i] * recordSize)) {
+                    order[retained++] = order[i];
+                }
+            }
+            validProbes = retained;
+        }
+
+        if (!storage.hasFastRankAccess()) {
+            for (int i = 0; i < validProbes; i++) {
+                result[order[i]] = storage.contains(probes, order[i] * recordSize);
+            }
+            return;
+        }
+
+        sort(0, validProbes, new int[validProbes]);
+
+        int count = storage.count();
+        int position = 0;
+        for (int i = 0; i < validProbes && position < count; i++) {
+            int probe = order[i];
+            int offset = probe * recordSize;
+
+            position = storage.lowerBound(probes, offset, position);
+            result[probe] = position < count && storage.compare(position, probes, offset) == 0;
+        }
+    }
+
+    /**
+     * Merge sorts the probe indices order[from, to) by probe record.
+     */
+    private void sort(int from, int to, int[] buffer) {
+        for (int width = 1; width < to - from; width <<= 1) {
+            for (int low = from; low < to - width; low += width << 1) {
+                merge(low, low + width, Math.min(low + (width << 1), to), buffer);
+            }
+        }
+    }
+
+    private void merge(int low, int middle, int high, int[] buffer) {
+        if (compare(order[middle - 1], order[middle]) <= 0) {
+            return;
+        }
+
+        System.arraycopy(order, low, buffer, low, high - low);
+        int left = low;
+        int right = middle;
+        for (int i = low; i < high; i++) {
+            if (right >= high || (left < middle && compare(buffer[left], buffer[right]) <= 0)) {
+                order[i] = buffer[left++];
+            } else {
+                order[i] = buffer[right++];
+            }
+        }
+    }
+
+    private int compare(int first, int second) {
+        return HashBytes.compare(probes, first * recordSize, probes, second * recordSize, recordSize);
+    }
+}
@@ -23,6 +23,7 @@
 package eu.europa.ec.dgc.partialvariablehashfilter;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 
 class BinarySearch {
 
@@ -31,6 +32,8 @@ class BinarySearch {
      * The array is expected to be sorted, otherwise the result is undefined.
      * <p>
      * If the array contains multiple elements equal to the specified [element], there is no guarantee which one will be found.
+     * <p>
+     * Kept for compatibility only, the filter itself searches its packed storage with the iterative overloads.
      *
      * @param element   the to search for.
      * @param fromIndex the start of the range (inclusive) to search in, 0 by default.
@@ -54,4 +57,97 @@ class BinarySearch {
 
         return false;
     }
-}
\ No newline at end of file
+
+    /**
+     * Searches the range of a sorted long array for the provided [key] without recursion or allocation.
+     *
+     * @param array     sorted array to search in.
+     * @param fromIndex the start of the range (inclusive) to search in.
+     * @param toIndex   the end of the range (exclusive) to search in.
+     * @param key       the value to search for.
+     * @return the index of the key, or (-(insertion point) - 1) when it is not contained in the range.
+     */
+    static int binarySearch(long[] array, int fromIndex, int toIndex, long key) {
+        int low = fromIndex;
+        int high = toIndex - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long value = array[middle];
+
+            if (value < key) {
+                low = middle + 1;
+            } else if (value > key) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+
+        return -(low + 1);
+    }
+
+    /**
+     * Searches the range of sorted fixed size records for the provided [key] without recursion or allocation.
+     * Records are compared in filter order, see {@link HashBytes#compare(byte[], int, byte[], int, int)}.
+     *
+     * @param records    sorted records stored back to back.
+     * @param recordSize number of bytes per record.
+     * @param fromIndex  the first record (inclusive) to search in.
+     * @param toIndex    the last record (exclusive) to search in.
+     * @param key        array holding the record to search for.
+     * @param keyOffset  position of the record in key.
+     * @return the record index of the key, or (-(insertion point) - 1) when it is not contained in the range.
+     */
+    static int binarySearch(byte[] records, int recordSize, int fromIndex, int toIndex, byte[] key, int keyOffset) {
+        int low = fromIndex;
+        int high = toIndex - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int result = HashBytes.compare(records, middle * recordSize, key, keyOffset, recordSize);
+
+            if (result < 0) {
+                low = middle + 1;
+            } else if (result > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+
+        return -(low + 1);
+    }
+
+    /**
+     * Searches the range of sorted fixed size records in a buffer for the provided [key] without recursion or
+     * allocation. Record positions are absolute, starting at index 0 of the buffer.
+     *
+     * @param records    sorted records stored back to back.
+     * @param recordSize number of bytes per record.
+     * @param fromIndex  the first record (inclusive) to search in.
+     * @param toIndex    the last record (exclusive) to search in.
+     * @param key        array holding the record to search for.
+     * @param keyOffset  position of the record in key.
+     * @return the record index of the key, or (-(insertion point) - 1) when it is not contained in the range.
+     */
+    static int binarySearch(ByteBuffer records, int recordSize, int fromIndex, int toIndex, byte[] key, int keyOffset) {
+        int low = fromIndex;
+        int high = toIndex - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int result = HashBytes.compare(records, middle * recordSize, key, keyOffset, recordSize);
+
+            if (result < 0) {
+                low = middle + 1;
+            } else if (result > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+
+        return -(low + 1);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Blocked Bloom filter over the partial hashes of a filter. Every record sets one bit in each of the 8 words of one
+ * 64 byte block, so a lookup touches a single cache line. A negative answer is exact, a positive answer has to be
+ * confirmed by searching the storage.
+ */
+final class BloomPrefilter {
+    /**
+     * Filter bits per record, giving a false positive rate of about 0.5%.
+     */
+    static final int BITS_PER_RECORD = 12;
+
+    private static final int WORDS_PER_BLOCK = 8;
+
+    private final int recordSize;
+    private final int blockCount;
+    private final long[] words;
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * @param recordSize    bytes per record
+     * @param expectedCount number of records the filter is sized for
+     */
+    BloomPrefilter(int recordSize, long expectedCount) {
+        long bits = Math.max(1, expectedCount) * BITS_PER_RECORD;
+        this.recordSize = recordSize;
+        this.blockCount = (int) Math.min(Integer.MAX_VALUE / WORDS_PER_BLOCK, (bits + 511) / 512);
+        this.words = new long[blockCount * WORDS_PER_BLOCK];
+    }
+
+    /**
+     * Builds the prefilter for all records of a storage.
+     */
+    static BloomPrefilter of(HashStorage storage) {
+        BloomPrefilter prefilter = new BloomPrefilter(storage.recordSize, storage.count());
+        int count = storage.count();
+        int chunkRecords = 4096;
+        byte[] chunk = new byte[Math.min(chunkRecords, count) * storage.recordSize];
+
+        for (int index = 0; index < count; index += chunkRecords) {
+            int records = Math.min(chunkRecords, count - index);
+            storage.get(index, records, chunk, 0);
+            for (int i = 0; i < records; i++) {
+                prefilter.add(chunk, i * storage.recordSize);
+            }
+        }
+        return prefilter;
+    }
+
+    void add(byte[] record, int offset) {
+        long hash = hash(record, offset);
+        int base = block(hash) * WORDS_PER_BLOCK;
+        long bits = hash * 0x9E3779B97F4A7C15L;
+
+        for (int i = 0; i < WORDS_PER_BLOCK; i++) {
+            words[base + i] |= 1L << (bits >>> (i * 8));
+        }
+    }
+
+    /**
+     * @return false when the record is certainly not contained
+     */
+    boolean mightContain(byte[] key, int offset) {
+        long hash = hash(key, offset);
+        int base = block(hash) * WORDS_PER_BLOCK;
+        long bits = hash * 0x9E3779B97F4A7C15L;
+
+        for (int i = 0; i < WORDS_PER_BLOCK; i++) {
+            if ((words[base + i] & (1L << (bits >>> (i * 8)))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks a record like {@link #mightContain(byte[], int)} and counts the lookup for {@link #rejectionRate()}.
+     *
+     * @return false when the record is certainly not contained
+     */
+    boolean mightContainCounted(byte[] key, int offset) {
+        boolean result = mightContain(key, offset);
+        lookups.increment();
+        if (!result) {
+            rejections.increment();
+        }
+        return result;
+    }
+
+    /**
+     * @return approximate heap size of the prefilter in bytes
+     */
+    long memoryBytes() {
+        return 16L + 8L * words.length;
+    }
+
+    /**
+     * @return share of counted lookups rejected by the prefilter so far, 0 before the first counted lookup
+     */
+    double rejectionRate() {
+        long total = lookups.sum();
+        return total == 0 ? 0 : (double) rejections.sum() / total;
+    }
+
+    private int block(long hash) {
+        return (int) (((hash >>> 32) * blockCount) >>> 32);
+    }
+
+    private long hash(byte[] key, int offset) {
+        int head = Math.min(recordSize, Long.BYTES);
+        long hash = HashBytes.toLong(key, offset, head);
+        if (recordSize > Long.BYTES) {
+            hash ^= Long.rotateLeft(HashBytes.toLong(key, offset + head, Math.min(recordSize - head, Long.BYTES)), 31);
+        }
+
+        // murmur3 finalizer, short partial hashes do not fill all bits on their own
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB93FE1A85EC3L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Read only storage on top of sorted records in a buffer, e.g. the payload of a memory mapped filter file.
+ * Lookups run directly against the buffer, nothing is copied.
+ * <p>
+ * {@link #close()} only marks the storage closed, accesses check a flag that is written once and never count
+ * anything. The memory of a direct buffer is released by its cleaner once the closed storage is no longer referenced,
+ * so lookups running while it is closed keep their memory until they finished.
+ */
+final class BufferHashStorage extends HashStorage {
+    private final ByteBuffer records;
+    private final int count;
+    private volatile boolean closed;
+
+    /**
+     * @param records    sorted records from position to limit, the buffer must not be modified afterwards
+     * @param recordSize bytes per record
+     */
+    BufferHashStorage(ByteBuffer records, int recordSize) {
+        super(recordSize);
+        this.records = records.slice().asReadOnlyBuffer();
+        this.count = this.records.remaining() / recordSize;
+    }
+
+    /**
+     * Copies sorted records into a new direct buffer outside of the heap.
+     *
+     * @param sorted storage in filter order
+     * @return storage on top of the direct buffer
+     */
+    static BufferHashStorage offHeap(HashStorage sorted) {
+        int recordSize = sorted.recordSize;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Math.multiplyExact(sorted.count(), recordSize));
+        RecordCursor cursor = new RecordCursor(sorted);
+        while (cursor.hasRecord()) {
+            buffer.put(cursor.chunk(), cursor.offset(), recordSize);
+            cursor.next();
+        }
+        buffer.flip();
+        return new BufferHashStorage(buffer, recordSize);
+    }
+
+    @Override
+    boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    ByteBuffer records() {
+        return buffer().duplicate();
+    }
+
+    @Override
+    int count() {
+        return count;
+    }
+
+    @Override
+    long memoryBytes() {
+        return closed ? 0 : (long) count * recordSize;
+    }
+
+    @Override
+    void append(byte[] src, int offset, int records) {
+        throw new UnsupportedOperationException("Storage is read only");
+    }
+
+    @Override
+    void sort(ForkJoinPool pool) {
+        throw new UnsupportedOperationException("Storage is read only");
+    }
+
+    @Override
+    void deduplicate() {
+        throw new UnsupportedOperationException("Storage is read only");
+    }
+
+    @Override
+    void insert(byte[] src, int offset) {
+        throw new UnsupportedOperationException("Storage is read only");
+    }
+
+    @Override
+    boolean contains(byte[] key, int offset, int fromIndex, int toIndex) {
+        return BinarySearch.binarySearch(buffer(), recordSize, fromIndex, toIndex, key, offset) >= 0;
+    }
+
+    @Override
+    int compare(int index, byte[] key, int offset) {
+        return HashBytes.compare(buffer(), index * recordSize, key, offset, recordSize);
+    }
+
+    @Override
+    void get(int index, byte[] dst, int offset) {
+        ByteBuffer source = buffer();
+        int start = index * recordSize;
+        for (int i = 0; i < recordSize; i++) {
+            dst[offset + i] = source.get(start + i);
+        }
+    }
+
+    @Override
+    void get(int index, int records, byte[] dst, int offset) {
+        ByteBuffer source = buffer().duplicate();
+        source.position(index * recordSize);
+        source.get(dst, offset, records * recordSize);
+    }
+
+    @Override
+    void close() {
+        closed = true;
+    }
+
+    private ByteBuffer buffer() {
+        if (closed) {
+            throw new IllegalStateException("Filter is closed");
+        }
+        return records;
+    }
+}
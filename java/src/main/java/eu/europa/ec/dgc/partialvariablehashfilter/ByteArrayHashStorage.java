@@ -0,0 +1,238 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Storage for records longer than 8 bytes, all records are kept back to back in one flat byte array.
+ */
+final class ByteArrayHashStorage extends HashStorage {
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+    private static final int PARALLEL_SORT_GRANULARITY = 1 << 13;
+
+    private byte[] records;
+    private int count;
+
+    ByteArrayHashStorage(int recordSize, int capacity) {
+        super(recordSize);
+        this.records = new byte[Math.multiplyExact(capacity, recordSize)];
+    }
+
+    @Override
+    int count() {
+        return count;
+    }
+
+    @Override
+    long memoryBytes() {
+        return records.length;
+    }
+
+    @Override
+    void append(byte[] src, int offset, int records) {
+        ensureCapacity(count + records);
+        System.arraycopy(src, offset, this.records, count * recordSize, records * recordSize);
+        count += records;
+    }
+
+    @Override
+    void sort(ForkJoinPool pool) {
+        if (pool != null) {
+            pool.invoke(new SortTask(0, count - 1));
+            return;
+        }
+
+        byte[] pivot = new byte[recordSize];
+        byte[] swap = new byte[recordSize];
+        quickSort(0, count - 1, pivot, swap);
+    }
+
+    @Override
+    void deduplicate() {
+        if (count == 0) {
+            return;
+        }
+
+        int unique = 1;
+        for (int i = 1; i < count; i++) {
+            if (compare(i, unique - 1) != 0) {
+                System.arraycopy(records, i * recordSize, records, unique * recordSize, recordSize);
+                unique++;
+            }
+        }
+        count = unique;
+    }
+
+    @Override
+    void insert(byte[] src, int offset) {
+        int position = BinarySearch.binarySearch(records, recordSize, 0, count, src, offset);
+        if (position < 0) {
+            position = -position - 1;
+        }
+
+        ensureCapacity(count + 1);
+        System.arraycopy(records, position * recordSize, records, (position + 1) * recordSize,
+            (count - position) * recordSize);
+        System.arraycopy(src, offset, records, position * recordSize, recordSize);
+        count++;
+    }
+
+    @Override
+    boolean contains(byte[] key, int offset, int fromIndex, int toIndex) {
+        return BinarySearch.binarySearch(records, recordSize, fromIndex, toIndex, key, offset) >= 0;
+    }
+
+    @Override
+    int compare(int index, byte[] key, int offset) {
+        return HashBytes.compare(records, index * recordSize, key, offset, recordSize);
+    }
+
+    @Override
+    void get(int index, byte[] dst, int offset) {
+        System.arraycopy(records, index * recordSize, dst, offset, recordSize);
+    }
+
+    @Override
+    void get(int index, int records, byte[] dst, int offset) {
+        System.arraycopy(this.records, index * recordSize, dst, offset, records * recordSize);
+    }
+
+    private void quickSort(int low, int high, byte[] pivot, byte[] swap) {
+        while (high - low >= INSERTION_SORT_THRESHOLD) {
+            long bounds = partition(low, high, pivot, swap);
+            int left = (int) (bounds >>> 32);
+            int right = (int) bounds;
+
+            // recurse into the smaller part to bound the stack depth
+            if (right - low < high - left) {
+                quickSort(low, right, pivot, swap);
+                low = left;
+            } else {
+                quickSort(left, high, pivot, swap);
+                high = right;
+            }
+        }
+
+        insertionSort(low, high, swap);
+    }
+
+    /**
+     * Partitions a range around the median of its first, middle and last record.
+     *
+     * @return the start of the upper part in the high and the end of the lower part in the low 32 bits, records in
+     *     between equal the pivot
+     */
+    private long partition(int low, int high, byte[] pivot, byte[] swap) {
+        int middle = (low + high) >>> 1;
+        if (compare(middle, low) < 0) {
+            swap(middle, low, swap);
+        }
+        if (compare(high, low) < 0) {
+            swap(high, low, swap);
+        }
+        if (compare(high, middle) < 0) {
+            swap(high, middle, swap);
+        }
+        System.arraycopy(records, middle * recordSize, pivot, 0, recordSize);
+
+        int left = low;
+        int right = high;
+        while (left <= right) {
+            while (HashBytes.compare(records, left * recordSize, pivot, 0, recordSize) < 0) {
+                left++;
+            }
+            while (HashBytes.compare(records, right * recordSize, pivot, 0, recordSize) > 0) {
+                right--;
+            }
+            if (left <= right) {
+                swap(left++, right--, swap);
+            }
+        }
+        return (long) left << 32 | (right & 0xFFFFFFFFL);
+    }
+
+    private void insertionSort(int low, int high, byte[] swap) {
+        for (int i = low + 1; i <= high; i++) {
+            for (int j = i; j > low && compare(j - 1, j) > 0; j--) {
+                swap(j - 1, j, swap);
+            }
+        }
+    }
+
+    private int compare(int first, int second) {
+        return HashBytes.compare(records, first * recordSize, records, second * recordSize, recordSize);
+    }
+
+    private void swap(int first, int second, byte[] swap) {
+        System.arraycopy(records, first * recordSize, swap, 0, recordSize);
+        System.arraycopy(records, second * recordSize, records, first * recordSize, recordSize);
+        System.arraycopy(swap, 0, records, second * recordSize, recordSize);
+    }
+
+    /**
+     * Quick sort forking the upper part of every partition until the parts fall below
+     * {@link #PARALLEL_SORT_GRANULARITY} records, the parts are disjoint so no merge is needed.
+     */
+    private final class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int low;
+        private final int high;
+
+        SortTask(int low, int high) {
+            this.low = low;
+            this.high = high;
+        }
+
+        @Override
+        protected void compute() {
+            byte[] pivot = new byte[recordSize];
+            byte[] swap = new byte[recordSize];
+            List<SortTask> forked = new ArrayList<>();
+
+            int end = high;
+            while (end - low >= PARALLEL_SORT_GRANULARITY) {
+                long bounds = partition(low, end, pivot, swap);
+                SortTask upper = new SortTask((int) (bounds >>> 32), end);
+                upper.fork();
+                forked.add(upper);
+                end = (int) bounds;
+            }
+            quickSort(low, end, pivot, swap);
+
+            for (SortTask task : forked) {
+                task.join();
+            }
+        }
+    }
+
+    private void ensureCapacity(int required) {
+        int capacity = records.length / recordSize;
+        if (required > capacity) {
+            records = Arrays.copyOf(records, Math.multiplyExact(grow(capacity, required), recordSize));
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Partial variable hash filter that can be shared between threads while hashes are added.
+ * <p>
+ * Lookups read an immutable snapshot through a volatile reference and never lock. Added hashes are collected in a
+ * pending buffer and merged into a new snapshot once the buffer reaches the merge threshold or its oldest hash is
+ * older than the maximum delay, or when {@link #flush()} is called. Until then lookups do not see them.
+ * <p>
+ * A replaced snapshot is closed, snapshots kept outside of the heap release their memory once they are no longer
+ * referenced by running lookups.
+ */
+public class ConcurrentPartialVariableHashFilter {
+    /**
+     * Capacity of a new pending buffer, it grows up to the merge threshold as hashes are added.
+     */
+    static final int INITIAL_PENDING_CAPACITY = 64;
+
+    private final byte size;
+    private final float probRate;
+    private final int definedElementAmount;
+    private final int mergeThreshold;
+    private final long maxDelayNanos;
+    private final LoadOptions options;
+    private final ScheduledExecutorService scheduler;
+    private final Object writeLock = new Object();
+
+    private volatile PartialVariableHashFilter snapshot;
+    private boolean snapshotShared;
+    private HashStorage pending;
+    private long pendingSince;
+    private ScheduledFuture<?> scheduledMerge;
+
+    /**
+     * Concurrent filter initialization
+     *
+     * @param filter         initial content, it must not be modified afterwards
+     * @param mergeThreshold number of pending hashes that triggers a merge
+     * @param maxDelay       maximum age of a pending hash, checked when hashes are added
+     */
+    public ConcurrentPartialVariableHashFilter(@NotNull PartialVariableHashFilter filter, int mergeThreshold,
+                                               @NotNull Duration maxDelay) {
+        this(filter, mergeThreshold, maxDelay, LoadOptions.defaults(), null);
+    }
+
+    /**
+     * Concurrent filter initialization
+     *
+     * @param filter         initial content, it must not be modified afterwards
+     * @param mergeThreshold number of pending hashes that triggers a merge
+     * @param maxDelay       maximum age of a pending hash
+     * @param options        options for the lookup structures and layout of every snapshot, metrics are attached
+     *                       to the current snapshot
+     * @param scheduler      optional scheduler merging pending hashes after maxDelay even when no more hashes are
+     *                       added, without it the delay is only checked when hashes are added
+     * @throws IllegalArgumentException when mergeThreshold is not positive
+     */
+    public ConcurrentPartialVariableHashFilter(@NotNull PartialVariableHashFilter filter, int mergeThreshold,
+                                               @NotNull Duration maxDelay, @NotNull LoadOptions options,
+                                               @Nullable ScheduledExecutorService scheduler)
+        throws IllegalArgumentException {
+        if (mergeThreshold <= 0) {
+            throw new IllegalArgumentException("Merge threshold must be positive");
+        }
+
+        this.size = filter.getSize();
+        this.probRate = filter.getProbRate();
+        this.definedElementAmount = filter.getDefinedElementAmount();
+        this.mergeThreshold = mergeThreshold;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.options = options;
+        this.scheduler = scheduler;
+        this.pending = createPending();
+        this.snapshot = createSnapshot(filter.storage());
+        // a read only storage is used as is and still belongs to the filter
+        this.snapshotShared = snapshot.storage() == filter.storage();
+    }
+
+    /**
+     * Check whether the current snapshot contains dcc hash bytes, see
+     * {@link PartialVariableHashFilter#mightContain(byte[])}.
+     *
+     * @param dccHashBytes byte array of dcc hash.
+     * @return true is contains otherwise false
+     */
+    public boolean mightContain(byte[] dccHashBytes) {
+        while (true) {
+            PartialVariableHashFilter current = snapshot;
+            try {
+                return current.mightContain(dccHashBytes);
+            } catch (IllegalStateException e) {
+                // the snapshot was replaced and closed after it was read, the lookup is repeated on its replacement
+                if (snapshot == current) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks many dcc hashes against one snapshot, see {@link PartialVariableHashFilter#mightContainAll(byte[][])}.
+     *
+     * @param hashes byte arrays of dcc hashes
+     * @return result per hash, in the order of the hashes
+     */
+    public boolean[] mightContainAll(byte @NotNull [][] hashes) {
+        while (true) {
+            PartialVariableHashFilter current = snapshot;
+            try {
+                return current.mightContainAll(hashes);
+            } catch (IllegalStateException e) {
+                if (snapshot == current) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add hash data to the pending buffer, it is visible to lookups after the next merge.
+     *
+     * @param data binary hash data
+     * @throws IllegalArgumentException when data is less than partial hash size
+     */
+    public void add(byte @NotNull [] data) throws IllegalArgumentException {
+        if (data.length < size) {
+            throw new IllegalArgumentException("Data length cannot be less than partial hash size");
+        }
+
+        synchronized (writeLock) {
+            if (snapshot.getElementsCount() + pending.count() >= definedElementAmount) {
+                PartialVariableHashFilter.warnOverfilled();
+            }
+
+            if (pending.count() == 0) {
+                pendingSince = System.nanoTime();
+                if (scheduler != null) {
+                    scheduledMerge = scheduler.schedule(this::flush, maxDelayNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+            pending.append(data, 0, 1);
+
+            if (pending.count() >= mergeThreshold || System.nanoTime() - pendingSince >= maxDelayNanos) {
+                merge();
+            }
+        }
+    }
+
+    /**
+     * Merges all pending hashes into a new snapshot.
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            merge();
+        }
+    }
+
+    /**
+     * @return immutable filter with the content visible to lookups, it is closed once a merge replaces it
+     */
+    public PartialVariableHashFilter snapshot() {
+        return snapshot;
+    }
+
+    public byte getSize() {
+        return size;
+    }
+
+    /**
+     * @return number of partial hashes in the current snapshot
+     */
+    public int getElementsCount() {
+        return snapshot.getElementsCount();
+    }
+
+    /**
+     * @return number of added hashes not yet merged
+     */
+    public int getPendingCount() {
+        synchronized (writeLock) {
+            return pending.count();
+        }
+    }
+
+    private void merge() {
+        if (scheduledMerge != null) {
+            scheduledMerge.cancel(false);
+            scheduledMerge = null;
+        }
+        if (pending.count() == 0) {
+            return;
+        }
+
+        pending.sort(null);
+        PartialVariableHashFilter previous = snapshot;
+        snapshot = createSnapshot(StorageMerge.merge(previous.storage(), pending));
+        previous.setMetrics(null);
+        if (!snapshotShared) {
+            previous.close();
+        }
+        snapshotShared = false;
+        pending = createPending();
+    }
+
+    private HashStorage createPending() {
+        return HashStorage.create(size, Math.min(mergeThreshold, INITIAL_PENDING_CAPACITY));
+    }
+
+    private PartialVariableHashFilter createSnapshot(HashStorage sorted) {
+        StorageLoader loader = new StorageLoader(sorted, options);
+        loader.finish();
+        PartialVariableHashFilter created = new PartialVariableHashFilter(size, probRate, definedElementAmount,
+            loader, true);
+        created.setMetrics(options.getMetrics());
+        return created;
+    }
+}
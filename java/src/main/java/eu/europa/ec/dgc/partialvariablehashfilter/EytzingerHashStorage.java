@@ -0,0 +1,228 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Read only storage keeping the records in Eytzinger order: the record of tree node k is stored at position k, its
+ * children at 2k and 2k + 1, position 0 is unused. A lookup descends the tree without data dependent branches,
+ * records are still addressed by their rank in filter order from the outside.
+ */
+final class EytzingerHashStorage extends HashStorage {
+    private final int count;
+    private final long[] values;
+    private final byte[] records;
+
+    private EytzingerHashStorage(int recordSize, int count, long[] values, byte[] records) {
+        super(recordSize);
+        this.count = count;
+        this.values = values;
+        this.records = records;
+    }
+
+    /**
+     * Builds the tree from sorted records.
+     *
+     * @param sorted storage in filter order
+     * @return storage with the same records in Eytzinger order
+     */
+    static EytzingerHashStorage of(HashStorage sorted) {
+        int count = sorted.count();
+        int recordSize = sorted.recordSize;
+        boolean packed = recordSize <= MAX_PACKED_RECORD_SIZE;
+        long[] values = packed ? new long[count + 1] : null;
+        byte[] records = packed ? null : new byte[Math.multiplyExact(count + 1, recordSize)];
+        RecordCursor cursor = new RecordCursor(sorted);
+
+        // an in-order walk of the tree visits the positions in filter order
+        int position = first(count);
+        for (; cursor.hasRecord(); cursor.next()) {
+            if (packed) {
+                values[position] = HashBytes.toLong(cursor.chunk(), cursor.offset(), recordSize);
+            } else {
+                System.arraycopy(cursor.chunk(), cursor.offset(), records, position * recordSize, recordSize);
+            }
+            position = next(position, count);
+        }
+
+        return new EytzingerHashStorage(recordSize, count, values, records);
+    }
+
+    @Override
+    boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    boolean hasFastRankAccess() {
+        return false;
+    }
+
+    @Override
+    int count() {
+        return count;
+    }
+
+    @Override
+    long memoryBytes() {
+        return values != null ? (long) values.length * Long.BYTES : records.length;
+    }
+
+    @Override
+    void append(byte[] src, int offset, int records) {
+        throw new UnsupportedOperationException("Storage is read only");
+    }
+
+    @Override
+    void sort(ForkJoinPool pool) {
+        throw new UnsupportedOperationException("Storage is read only");
+    }
+
+    @Override
+    void deduplicate() {
+        throw new UnsupportedOperationException("Storage is read only");
+    }
+
+    @Override
+    void insert(byte[] src, int offset) {
+        throw new UnsupportedOperationException("Storage is read only");
+    }
+
+    @Override
+    boolean contains(byte[] key, int offset, int fromIndex, int toIndex) {
+        if (fromIndex != 0 || toIndex != count) {
+            int rank = lowerBound(key, offset, fromIndex);
+            return rank < toIndex && compare(rank, key, offset) == 0;
+        }
+
+        int position = 1;
+        if (values != null) {
+            long value = HashBytes.toLong(key, offset, recordSize);
+            while (position <= count) {
+                position = 2 * position + (values[position] < value ? 1 : 0);
+            }
+            position >>>= Integer.numberOfTrailingZeros(~position) + 1;
+            return position != 0 && values[position] == value;
+        }
+
+        while (position <= count) {
+            position = 2 * position
+                + (HashBytes.compare(records, position * recordSize, key, offset, recordSize) < 0 ? 1 : 0);
+        }
+        position >>>= Integer.numberOfTrailingZeros(~position) + 1;
+        return position != 0 && HashBytes.compare(records, position * recordSize, key, offset, recordSize) == 0;
+    }
+
+    @Override
+    int compare(int index, byte[] key, int offset) {
+        int position = position(index);
+        if (values != null) {
+            return Long.compare(values[position], HashBytes.toLong(key, offset, recordSize));
+        }
+        return HashBytes.compare(records, position * recordSize, key, offset, recordSize);
+    }
+
+    @Override
+    void get(int index, byte[] dst, int offset) {
+        copy(position(index), dst, offset);
+    }
+
+    @Override
+    void get(int index, int records, byte[] dst, int offset) {
+        int position = position(index);
+        for (int i = 0; i < records; i++) {
+            copy(position, dst, offset + i * recordSize);
+            position = next(position, count);
+        }
+    }
+
+    private void copy(int position, byte[] dst, int offset) {
+        if (values != null) {
+            HashBytes.fromLong(values[position], dst, offset, recordSize);
+        } else {
+            System.arraycopy(records, position * recordSize, dst, offset, recordSize);
+        }
+    }
+
+    /**
+     * @return tree position of the record with the given rank in filter order
+     */
+    private int position(int rank) {
+        int position = 1;
+        while (true) {
+            int left = subtreeSize(2 * position);
+            if (rank < left) {
+                position = 2 * position;
+            } else if (rank == left) {
+                return position;
+            } else {
+                rank -= left + 1;
+                position = 2 * position + 1;
+            }
+        }
+    }
+
+    private int subtreeSize(int position) {
+        int size = 0;
+        long first = position;
+        long last = position;
+        while (first <= count) {
+            size += (int) (Math.min(last, count) - first + 1);
+            first = 2 * first;
+            last = 2 * last + 1;
+        }
+        return size;
+    }
+
+    /**
+     * @return position of the smallest record, 0 for an empty tree
+     */
+    private static int first(int count) {
+        if (count == 0) {
+            return 0;
+        }
+
+        int position = 1;
+        while (2L * position <= count) {
+            position = 2 * position;
+        }
+        return position;
+    }
+
+    /**
+     * @return in-order successor of position, 0 after the largest record
+     */
+    private static int next(int position, int count) {
+        if (2L * position + 1 <= count) {
+            position = 2 * position + 1;
+            while (2L * position <= count) {
+                position = 2 * position;
+            }
+            return position;
+        }
+
+        while ((position & 1) == 1) {
+            position >>>= 1;
+        }
+        return position >>> 1;
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Measures the false positive rate of filters of different partial hash sizes for a set of hashes and finds the
+ * smallest size meeting a target rate.
+ * <p>
+ * The rate is measured with random probes that are routed to the filter like real lookups: with a
+ * {@link PartitionOffset} the leading bytes of a probe are those of a random hash, only the remaining bytes are
+ * random. A probe is a false positive at a size when a stored hash starts with the same bytes. The probes are
+ * checked once against the hashes at the largest size, the longest common prefix with the nearest hashes gives the
+ * result for all smaller sizes at once. Large analyses run in a pool.
+ * <p>
+ * Sizes count the hash bytes after the partition bytes, like the partial hashes of a partition filter in a
+ * {@link FilterRegistry} and {@link Report#getCalculatedSize()}. To build the filter of one partition, add the hashes
+ * of that partition only.
+ */
+public final class FalsePositiveAnalyzer {
+    private static final int PROBES_PER_TASK = 1 << 14;
+    private static final int MIN_PROBES = 1 << 16;
+    private static final int MAX_PROBES = 1 << 24;
+
+    private final PartitionOffset partitionOffset;
+    private final byte maxSize;
+    /**
+     * Stored bytes per hash, the partition bytes followed by maxSize bytes.
+     */
+    private final int width;
+    private HashStorage storage;
+    private boolean sorted;
+    private int probes;
+    private long seed = 0x5DEECE66DL;
+    private ForkJoinPool pool;
+
+    /**
+     * @param partitionOffset partitioning of the filter, see {@link FilterRegistry}
+     * @param maxSize         largest partial hash size to analyze, without the partition bytes; every added hash
+     *                        must hold the partition bytes and at least maxSize bytes after them
+     * @throws IllegalArgumentException when maxSize is not positive
+     */
+    public FalsePositiveAnalyzer(@NotNull PartitionOffset partitionOffset, byte maxSize)
+        throws IllegalArgumentException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Maximum size must be positive");
+        }
+
+        this.partitionOffset = partitionOffset;
+        this.maxSize = maxSize;
+        this.width = partitionOffset.value + maxSize;
+        this.storage = HashStorage.create(width, 0);
+    }
+
+    /**
+     * Add hash data, only the partition bytes and the maxSize bytes after them are kept.
+     *
+     * @param data binary hash data
+     * @return this analyzer
+     * @throws IllegalArgumentException when data is less than the partition bytes and the maximum size
+     */
+    public FalsePositiveAnalyzer add(byte @NotNull [] data) throws IllegalArgumentException {
+        if (data.length < width) {
+            throw new IllegalArgumentException("Data length cannot be less than partition offset and maximum size");
+        }
+
+        storage.append(data, 0, 1);
+        sorted = false;
+        return this;
+    }
+
+    /**
+     * Add all hashes.
+     *
+     * @param hashes binary hash data
+     * @return this analyzer
+     * @throws IllegalArgumentException when a hash is less than the maximum size
+     */
+    public FalsePositiveAnalyzer addAll(@NotNull Iterable<byte[]> hashes) throws IllegalArgumentException {
+        for (byte[] hash : hashes) {
+            add(hash);
+        }
+        return this;
+    }
+
+    /**
+     * @param probes number of random probes, by default 100 divided by the target rate, at least 65536 and at most
+     *               16777216
+     * @return this analyzer
+     */
+    public FalsePositiveAnalyzer probes(int probes) {
+        this.probes = probes;
+        return this;
+    }
+
+    /**
+     * @param seed seed of the random probes, the same seed and hashes give the same report
+     * @return this analyzer
+     */
+    public FalsePositiveAnalyzer seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * @param pool pool to sort and probe in, null for the common pool
+     * @return this analyzer
+     */
+    public FalsePositiveAnalyzer pool(@Nullable ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Measures the false positive rate of every size from 1 to the maximum size.
+     *
+     * @param probRate target false positive rate
+     * @return measured rates and the recommended size
+     */
+    public Report analyze(float probRate) {
+        ForkJoinPool forkJoinPool = pool != null ? pool : ForkJoinPool.commonPool();
+        sort(forkJoinPool);
+
+        int count = storage.count();
+        int probeCount = probes > 0 ? probes : (int) Math.max(MIN_PROBES, Math.min(MAX_PROBES, 100 / probRate));
+        int tasks = (probeCount + PROBES_PER_TASK - 1) / PROBES_PER_TASK;
+
+        // common prefix lengths of the probes with the nearest hashes, counted per length
+        long[] prefixLengths = new long[width + 1];
+        if (count > 0) {
+            long[][] counts = new long[tasks][];
+            forkJoinPool.invoke(ForkJoinTask.adapt(() -> IntStream.range(0, tasks).parallel().forEach(task ->
+                counts[task] = probe(task, Math.min(PROBES_PER_TASK, probeCount - task * PROBES_PER_TASK)))));
+            for (long[] taskCounts : counts) {
+                for (int length = 0; length <= width; length++) {
+                    prefixLengths[length] += taskCounts[length];
+                }
+            }
+        }
+
+        // a probe matching the partition bytes and size bytes after them is a false positive at the size
+        long[] distinct = distinctPrefixes();
+        List<SizeResult> results = new ArrayList<>(maxSize);
+        long falsePositives = 0;
+        for (int length = width; length > partitionOffset.value; length--) {
+            falsePositives += prefixLengths[length];
+            results.add(new SizeResult((byte) (length - partitionOffset.value), probeCount, falsePositives,
+                distinct[length]));
+        }
+        Collections.reverse(results);
+
+        byte recommendedSize = 0;
+        for (SizeResult result : results) {
+            if (result.getUpperRate() <= probRate) {
+                recommendedSize = result.getSize();
+                break;
+            }
+        }
+        byte calculatedSize = PartialVariableHashFilter.filterSize((byte) 1, partitionOffset, Math.max(count, 1),
+            probRate);
+        return new Report(probRate, count, results, recommendedSize, calculatedSize);
+    }
+
+    /**
+     * Analyzes the hashes and builds a filter of the recommended size, see {@link #analyze(float)}.
+     *
+     * @param probRate target false positive rate
+     * @return immutable filter of the smallest size meeting the target rate
+     * @throws IllegalStateException when no size up to the maximum size meets the target rate
+     */
+    public PartialVariableHashFilter build(float probRate) throws IllegalStateException {
+        Report report = analyze(probRate);
+        if (report.getRecommendedSize() == 0) {
+            throw new IllegalStateException("No partial hash size up to " + maxSize + " meets the rate " + probRate);
+        }
+        return build(report.getRecommendedSize(), probRate);
+    }
+
+    /**
+     * Builds a filter holding size bytes after the partition bytes of every added hash, every partial hash is kept
+     * once. Only the filter of one partition can be registered in a {@link FilterRegistry}.
+     *
+     * @param size     partial hash size without the partition bytes, at most the maximum size
+     * @param probRate false positive rate stored in the filter
+     * @return immutable filter
+     * @throws IllegalArgumentException when size is not between 1 and the maximum size
+     */
+    public PartialVariableHashFilter build(byte size, float probRate) throws IllegalArgumentException {
+        if (size < 1 || size > maxSize) {
+            throw new IllegalArgumentException("Size must be between 1 and " + maxSize);
+        }
+
+        ForkJoinPool forkJoinPool = pool != null ? pool : ForkJoinPool.commonPool();
+        sort(forkJoinPool);
+        int offset = partitionOffset.value;
+        HashStorage truncated = HashStorage.create(size, storage.count());
+        RecordCursor cursor = new RecordCursor(storage);
+        while (cursor.hasRecord()) {
+            truncated.append(cursor.chunk(), cursor.offset() + offset, 1);
+            cursor.next();
+        }
+        // truncating sorted hashes keeps them sorted, dropping the partition bytes only within a partition
+        if (offset > 0) {
+            truncated.sort(truncated.count() >= HashStorage.PARALLEL_THRESHOLD ? forkJoinPool : null);
+        }
+        truncated.deduplicate();
+
+        StorageLoader loader = new StorageLoader(truncated, LoadOptions.defaults());
+        loader.finish();
+        return new PartialVariableHashFilter(size, probRate, storage.count(), loader, true);
+    }
+
+    private void sort(ForkJoinPool forkJoinPool) {
+        if (!sorted) {
+            storage.sort(storage.count() >= HashStorage.PARALLEL_THRESHOLD ? forkJoinPool : null);
+            sorted = true;
+        }
+    }
+
+    private long[] probe(int task, int taskProbes) {
+        SplittableRandom random = new SplittableRandom(seed + task);
+        int count = storage.count();
+        int offset = partitionOffset.value;
+        byte[] probe = new byte[width];
+        byte[] record = new byte[width];
+        long[] prefixLengths = new long[width + 1];
+
+        for (int i = 0; i < taskProbes; i++) {
+            if (offset > 0) {
+                storage.get(random.nextInt(count), record, 0);
+                System.arraycopy(record, 0, probe, 0, offset);
+            }
+            for (int j = offset; j < width; j++) {
+                probe[j] = (byte) random.nextInt(256);
+            }
+
+            // the hashes sharing the most leading bytes with the probe are next to its sorted position
+            int index = storage.lowerBound(probe, 0, 0);
+            int length = 0;
+            if (index < count) {
+                storage.get(index, record, 0);
+                length = commonPrefix(probe, record);
+            }
+            if (index > 0) {
+                storage.get(index - 1, record, 0);
+                length = Math.max(length, commonPrefix(probe, record));
+            }
+            prefixLengths[length]++;
+        }
+        return prefixLengths;
+    }
+
+    /**
+     * @return number of distinct leading bytes of the sorted hashes per length including the partition bytes
+     */
+    private long[] distinctPrefixes() {
+        long[] distinct = new long[width + 1];
+        if (storage.count() == 0) {
+            return distinct;
+        }
+
+        byte[] previous = new byte[width];
+        long[] changes = new long[width + 1];
+        RecordCursor cursor = new RecordCursor(storage);
+        System.arraycopy(cursor.chunk(), cursor.offset(), previous, 0, width);
+        for (cursor.next(); cursor.hasRecord(); cursor.next()) {
+            int length = 0;
+            while (length < width && cursor.chunk()[cursor.offset() + length] == previous[length]) {
+                length++;
+            }
+            changes[length]++;
+            System.arraycopy(cursor.chunk(), cursor.offset(), previous, 0, width);
+        }
+
+        // hashes differ at a length when their common prefix is shorter
+        long differing = 1;
+        for (int length = 1; length <= width; length++) {
+            differing += changes[length - 1];
+            distinct[length] = differing;
+        }
+        return distinct;
+    }
+
+    private int commonPrefix(byte[] probe, byte[] record) {
+        int length = 0;
+        while (length < width && probe[length] == record[length]) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Measured false positive rate of one partial hash size.
+     */
+    public static final class SizeResult {
+        private final byte size;
+        private final long probes;
+        private final long falsePositives;
+        private final long distinctHashes;
+
+        private SizeResult(byte size, long probes, long falsePositives, long distinctHashes) {
+            this.size = size;
+            this.probes = probes;
+            this.falsePositives = falsePositives;
+            this.distinctHashes = distinctHashes;
+        }
+
+        public byte getSize() {
+            return size;
+        }
+
+        public long getProbes() {
+            return probes;
+        }
+
+        public long getFalsePositives() {
+            return falsePositives;
+        }
+
+        public double getRate() {
+            return (double) falsePositives / probes;
+        }
+
+        /**
+         * @return upper bound of the 95% confidence interval of the rate, at least 3 divided by the probes
+         */
+        public double getUpperRate() {
+            double rate = getRate();
+            return Math.max(rate + 1.96 * Math.sqrt(rate * (1 - rate) / probes), 3.0 / probes);
+        }
+
+        /**
+         * @return number of partial hashes left when duplicates of this size are removed
+         */
+        public long getDistinctHashes() {
+            return distinctHashes;
+        }
+
+        /**
+         * @return serialized size of the partial hashes without duplicates, excluding the filter header
+         */
+        public long getSerializedBytes() {
+            return distinctHashes * size;
+        }
+
+        @Override
+        public String toString() {
+            return "SizeResult{size=" + size + ", rate=" + getRate() + ", upperRate=" + getUpperRate()
+                + ", distinctHashes=" + distinctHashes + ", serializedBytes=" + getSerializedBytes() + "}";
+        }
+    }
+
+    /**
+     * Result of {@link #analyze(float)}.
+     */
+    public static final class Report {
+        private final float probRate;
+        private final int elements;
+        private final List<SizeResult> results;
+        private final byte recommendedSize;
+        private final byte calculatedSize;
+
+        private Report(float probRate, int elements, List<SizeResult> results, byte recommendedSize,
+                       byte calculatedSize) {
+            this.probRate = probRate;
+            this.elements = elements;
+            this.results = Collections.unmodifiableList(results);
+            this.recommendedSize = recommendedSize;
+            this.calculatedSize = calculatedSize;
+        }
+
+        public float getProbRate() {
+            return probRate;
+        }
+
+        public int getElements() {
+            return elements;
+        }
+
+        /**
+         * @return results by ascending size, starting at size 1
+         */
+        public List<SizeResult> getResults() {
+            return results;
+        }
+
+        /**
+         * @param size partial hash size
+         * @return result of the size
+         * @throws IllegalArgumentException when the size was not analyzed
+         */
+        public SizeResult getResult(byte size) throws IllegalArgumentException {
+            if (size < 1 || size > results.size()) {
+                throw new IllegalArgumentException("Size " + size + " was not analyzed");
+            }
+            return results.get(size - 1);
+        }
+
+        /**
+         * @return smallest size whose upper rate does not exceed the target rate, 0 when no analyzed size does
+         */
+        public byte getRecommendedSize() {
+            return recommendedSize;
+        }
+
+        /**
+         * @return size the filter constructors calculate for the same number of elements and rate with minimum size 1
+         */
+        public byte getCalculatedSize() {
+            return calculatedSize;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("Report{probRate=").append(probRate)
+                .append(", elements=").append(elements)
+                .append(", recommendedSize=").append(recommendedSize)
+                .append(", calculatedSize=").append(calculatedSize);
+            for (SizeResult result : results) {
+                builder.append(",\n  ").append(result);
+            }
+            return builder.append('}').toString();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Changes between two versions of a filter.
+ * <p>
+ * The serialized delta is a byte stream in big endian format:
+ * <pre>
+ * Pos   Field                 Description
+ * 0-1   version               version of the delta format, 1
+ * 2-5   base element count    number of partial hashes of the filter the delta applies to
+ * 6-9   p                     probability rate of the new filter
+ * 10-13 n                     amount of elements the new filter was constructed for
+ * 14    size                  size of the partial hashes in bytes, equal for both filters
+ * 15-18 added count           number of added partial hashes
+ * 19-22 removed count         number of removed partial hashes
+ * 23-*  added, removed        sorted added partial hashes, followed by the sorted removed partial hashes
+ * </pre>
+ */
+final class FilterDelta {
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 23;
+
+    final int baseElementCount;
+    final float probRate;
+    final int definedElementAmount;
+    final byte size;
+    final HashStorage added;
+    final HashStorage removed;
+
+    FilterDelta(int baseElementCount, float probRate, int definedElementAmount, byte size, HashStorage added,
+                HashStorage removed) {
+        this.baseElementCount = baseElementCount;
+        this.probRate = probRate;
+        this.definedElementAmount = definedElementAmount;
+        this.size = size;
+        this.added = added;
+        this.removed = removed;
+    }
+
+    /**
+     * Parses a serialized delta.
+     *
+     * @param data serialized delta
+     * @return delta with sorted added and removed partial hashes
+     * @throws IllegalArgumentException when the data is no valid delta
+     */
+    static FilterDelta readFrom(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        try {
+            short version = buffer.getShort();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported delta version " + version);
+            }
+
+            int baseElementCount = buffer.getInt();
+            float probRate = buffer.getFloat();
+            int definedElementAmount = buffer.getInt();
+            byte size = buffer.get();
+            int addedCount = buffer.getInt();
+            int removedCount = buffer.getInt();
+            if (size <= 0 || addedCount < 0 || removedCount < 0
+                || ((long) addedCount + removedCount) * size != buffer.remaining()) {
+                throw new IllegalArgumentException("Delta length does not match its header");
+            }
+
+            HashStorage added = readRecords(data, HEADER_SIZE, addedCount, size);
+            HashStorage removed = readRecords(data, HEADER_SIZE + addedCount * size, removedCount, size);
+            return new FilterDelta(baseElementCount, probRate, definedElementAmount, size, added, removed);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Delta ends within its header", e);
+        }
+    }
+
+    /**
+     * @return serialized delta
+     */
+    byte[] writeTo() {
+        int addedCount = added.count();
+        int removedCount = removed.count();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + (addedCount + removedCount) * size);
+        buffer.putShort(VERSION);
+        buffer.putInt(baseElementCount);
+        buffer.putFloat(probRate);
+        buffer.putInt(definedElementAmount);
+        buffer.put(size);
+        buffer.putInt(addedCount);
+        buffer.putInt(removedCount);
+
+        added.get(0, addedCount, buffer.array(), HEADER_SIZE);
+        removed.get(0, removedCount, buffer.array(), HEADER_SIZE + addedCount * size);
+        return buffer.array();
+    }
+
+    private static HashStorage readRecords(byte[] data, int offset, int count, byte size) {
+        HashStorage storage = HashStorage.create(size, count);
+        storage.append(data, offset, count);
+
+        for (int i = 1; i < count; i++) {
+            int position = offset + i * size;
+            if (HashBytes.compare(data, position - size, data, position, size) > 0) {
+                storage.sort(null);
+                break;
+            }
+        }
+        return storage;
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Lookup, load and serialization metrics of one or more filters.
+ * <p>
+ * Metrics are attached with {@link LoadOptions#withMetrics(FilterMetrics)} or
+ * {@link PartialVariableHashFilter#setMetrics(FilterMetrics)}. Counters are striped, so filters shared between
+ * threads do not contend on them. A lookup of an attached filter additionally reads the clock twice, a filter
+ * without metrics only checks for them.
+ */
+public final class FilterMetrics implements FilterMetricsMXBean {
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder serializations = new LongAdder();
+    private final LongAdder serializedBytes = new LongAdder();
+    private final LongAdder serializeNanos = new LongAdder();
+    private final List<WeakReference<PartialVariableHashFilter>> filters = new CopyOnWriteArrayList<>();
+    private final List<MetricsListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile long lastLoadNanos;
+
+    /**
+     * @param listener listener called after every load and serialization of an attached filter
+     */
+    public void addListener(@NotNull MetricsListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(@NotNull MetricsListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Registers the metrics at the platform MBean server.
+     *
+     * @param name value of the name key of the object name
+     * @return object name of the registered MBean
+     * @throws JMException when the name is invalid or already registered
+     */
+    public ObjectName registerMBean(@NotNull String name) throws JMException {
+        ObjectName objectName = new ObjectName(getClass().getPackage().getName()
+            + ":type=FilterMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * @return copy of the current values, the counters are read one after another
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Resets all counters, the latency histogram and the load time.
+     */
+    public void reset() {
+        lookups.reset();
+        hits.reset();
+        latency.reset();
+        loads.reset();
+        serializations.reset();
+        serializedBytes.reset();
+        serializeNanos.reset();
+        lastLoadNanos = 0;
+    }
+
+    @Override
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long total = lookups.sum();
+        return total == 0 ? 0 : (double) hits.sum() / total;
+    }
+
+    @Override
+    public long getLatencyP50Nanos() {
+        return latency.quantile(0.5);
+    }
+
+    @Override
+    public long getLatencyP99Nanos() {
+        return latency.quantile(0.99);
+    }
+
+    @Override
+    public long getLatencyP999Nanos() {
+        return latency.quantile(0.999);
+    }
+
+    /**
+     * @param quantile quantile between 0 and 1
+     * @return latency of single lookups at the quantile in nanoseconds, at most 25% above the measured value
+     */
+    public long getLatencyNanos(double quantile) {
+        return latency.quantile(quantile);
+    }
+
+    @Override
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    @Override
+    public long getLastLoadNanos() {
+        return lastLoadNanos;
+    }
+
+    @Override
+    public long getSerializations() {
+        return serializations.sum();
+    }
+
+    @Override
+    public long getSerializedBytes() {
+        return serializedBytes.sum();
+    }
+
+    @Override
+    public long getSerializeNanos() {
+        return serializeNanos.sum();
+    }
+
+    @Override
+    public int getFilters() {
+        int count = 0;
+        for (WeakReference<PartialVariableHashFilter> reference : filters) {
+            count += reference.get() != null ? 1 : 0;
+        }
+        return count;
+    }
+
+    @Override
+    public long getElementsCount() {
+        long count = 0;
+        for (WeakReference<PartialVariableHashFilter> reference : filters) {
+            PartialVariableHashFilter filter = reference.get();
+            count += filter != null ? filter.getElementsCount() : 0;
+        }
+        return count;
+    }
+
+    /**
+     * @return sum of {@link PartialVariableHashFilter#getMemoryBytes()} of the attached filters that are still
+     *     referenced
+     */
+    @Override
+    public long getRetainedBytes() {
+        long bytes = 0;
+        for (WeakReference<PartialVariableHashFilter> reference : filters) {
+            PartialVariableHashFilter filter = reference.get();
+            bytes += filter != null ? filter.getMemoryBytes() : 0;
+        }
+        return bytes;
+    }
+
+    void recordLookup(boolean hit, long nanos) {
+        lookups.increment();
+        if (hit) {
+            hits.increment();
+        }
+        latency.record(nanos);
+    }
+
+    /**
+     * Counts a batch of lookups, batches are not part of the latency histogram.
+     */
+    void recordLookups(boolean[] results) {
+        int hitCount = 0;
+        for (boolean result : results) {
+            hitCount += result ? 1 : 0;
+        }
+        lookups.add(results.length);
+        hits.add(hitCount);
+    }
+
+    void recordLoad(int elements, long nanos) {
+        loads.increment();
+        lastLoadNanos = nanos;
+        for (MetricsListener listener : listeners) {
+            listener.onLoad(elements, nanos);
+        }
+    }
+
+    void recordSerialize(long bytes, long nanos) {
+        serializations.increment();
+        serializedBytes.add(bytes);
+        serializeNanos.add(nanos);
+        for (MetricsListener listener : listeners) {
+            listener.onSerialize(bytes, nanos);
+        }
+    }
+
+    void attach(PartialVariableHashFilter filter) {
+        filters.removeIf(reference -> reference.get() == null);
+        filters.add(new WeakReference<>(filter));
+    }
+
+    void detach(PartialVariableHashFilter filter) {
+        filters.removeIf(reference -> reference.get() == null || reference.get() == filter);
+    }
+
+    /**
+     * Values of {@link FilterMetrics} at one point in time.
+     */
+    public static final class Snapshot {
+        private final long lookups;
+        private final long hits;
+        private final long latencyP50Nanos;
+        private final long latencyP99Nanos;
+        private final long latencyP999Nanos;
+        private final long loads;
+        private final long lastLoadNanos;
+        private final long serializations;
+        private final long serializedBytes;
+        private final long serializeNanos;
+        private final int filters;
+        private final long elementsCount;
+        private final long retainedBytes;
+
+        private Snapshot(FilterMetrics metrics) {
+            this.lookups = metrics.getLookups();
+            this.hits = metrics.getHits();
+            this.latencyP50Nanos = metrics.getLatencyP50Nanos();
+            this.latencyP99Nanos = metrics.getLatencyP99Nanos();
+            this.latencyP999Nanos = metrics.getLatencyP999Nanos();
+            this.loads = metrics.getLoads();
+            this.lastLoadNanos = metrics.getLastLoadNanos();
+            this.serializations = metrics.getSerializations();
+            this.serializedBytes = metrics.getSerializedBytes();
+            this.serializeNanos = metrics.getSerializeNanos();
+            this.filters = metrics.getFilters();
+            this.elementsCount = metrics.getElementsCount();
+            this.retainedBytes = metrics.getRetainedBytes();
+        }
+
+        public long getLookups() {
+            return lookups;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public double getHitRatio() {
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        public long getLatencyP50Nanos() {
+            return latencyP50Nanos;
+        }
+
+        public long getLatencyP99Nanos() {
+            return latencyP99Nanos;
+        }
+
+        public long getLatencyP999Nanos() {
+            return latencyP999Nanos;
+        }
+
+        public long getLoads() {
+            return loads;
+        }
+
+        public long getLastLoadNanos() {
+            return lastLoadNanos;
+        }
+
+        public long getSerializations() {
+            return serializations;
+        }
+
+        public long getSerializedBytes() {
+            return serializedBytes;
+        }
+
+        public long getSerializeNanos() {
+            return serializeNanos;
+        }
+
+        public int getFilters() {
+            return filters;
+        }
+
+        public long getElementsCount() {
+            return elementsCount;
+        }
+
+        public long getRetainedBytes() {
+            return retainedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "FilterMetrics{lookups=" + lookups + ", hits=" + hits + ", p50=" + latencyP50Nanos + "ns, p99="
+                + latencyP99Nanos + "ns, p999=" + latencyP999Nanos + "ns, loads=" + loads + ", lastLoad="
+                + lastLoadNanos + "ns, serializations=" + serializations + ", serializedBytes=" + serializedBytes
+                + ", filters=" + filters + ", elements=" + elementsCount + ", retainedBytes=" + retainedBytes + "}";
+        }
+    }
+}
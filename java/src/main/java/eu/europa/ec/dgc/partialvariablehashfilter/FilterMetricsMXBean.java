@@ -0,0 +1,57 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+/**
+ * JMX view of {@link FilterMetrics}.
+ *
+ * @see FilterMetrics#registerMBean(String)
+ */
+public interface FilterMetricsMXBean {
+
+    long getLookups();
+
+    long getHits();
+
+    double getHitRatio();
+
+    long getLatencyP50Nanos();
+
+    long getLatencyP99Nanos();
+
+    long getLatencyP999Nanos();
+
+    long getLoads();
+
+    long getLastLoadNanos();
+
+    long getSerializations();
+
+    long getSerializedBytes();
+
+    long getSerializeNanos();
+
+    int getFilters();
+
+    long getElementsCount();
+
+    long getRetainedBytes();
+}
@@ -0,0 +1,247 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Filters of many key identifiers, each partitioned by the leading bytes of the hashes.
+ * <p>
+ * The {@link PartitionOffset} of a kid is the number of leading hash bytes that select its partition: a POINT kid
+ * has a single filter, a VECTOR kid one filter per first byte x and a COORDINATE kid one per first two bytes x and
+ * y. Partitions are numbered like the leading bytes read as unsigned big endian number, 0 for POINT, x for VECTOR
+ * and x * 256 + y for COORDINATE. A lookup finds the filter of a hash with one array access after the kid.
+ * <p>
+ * The partition bytes are not stored again: a partition filter holds the hash bytes following them, which is what
+ * the partial hash size of {@link PartialVariableHashFilter#PartialVariableHashFilter(byte, PartitionOffset, int,
+ * float)} is reduced for. A VECTOR partition filter gets the hashes from their second byte on, a COORDINATE
+ * partition filter from their third byte on.
+ * <p>
+ * The registry can be shared between threads, lookups do not lock. Replacing a partition is atomic, lookups see
+ * either the previous or the new filter.
+ */
+public class FilterRegistry {
+    private final ConcurrentHashMap<String, Partitions> kids = new ConcurrentHashMap<>();
+
+    /**
+     * Adds or atomically replaces the filter of a partition. The filter must not be modified afterwards.
+     *
+     * @param kid       key identifier
+     * @param offset    partitioning of the kid, the same for all its partitions
+     * @param partition number of the partition, see {@link FilterRegistry}
+     * @param filter    filter of the partition, holding the hash bytes after the partition bytes
+     * @return replaced filter, it can be closed right away, see {@link #mightContain(String, byte[])}; null when
+     *     there was none
+     * @throws IllegalArgumentException when the kid is registered with another partitioning or the partition is out
+     *                                  of range
+     */
+    public @Nullable PartialVariableHashFilter put(@NotNull String kid, @NotNull PartitionOffset offset, int partition,
+                                                   @NotNull PartialVariableHashFilter filter)
+        throws IllegalArgumentException {
+        PartialVariableHashFilter[] replaced = new PartialVariableHashFilter[1];
+        // set while the kid is locked, so a concurrent removeKid either runs before and is followed by a new kid or
+        // removes the filter with the kid
+        kids.compute(kid, (key, current) -> {
+            Partitions partitions = current != null ? current : new Partitions(offset);
+            if (partitions.offset != offset) {
+                throw new IllegalArgumentException("Kid " + kid + " is partitioned by " + partitions.offset);
+            }
+            checkPartition(partitions, partition);
+            replaced[0] = partitions.filters.getAndSet(partition, filter);
+            return partitions;
+        });
+        return replaced[0];
+    }
+
+    /**
+     * Adds or atomically replaces the filter of a partition with a filter on top of a region of serialized filters,
+     * e.g. a memory mapped file holding all partitions of a kid. Sorted regions are used without copying, so all
+     * partitions share the buffer, see {@link PartialVariableHashFilter#PartialVariableHashFilter(ByteBuffer)}.
+     *
+     * @param kid       key identifier
+     * @param offset    partitioning of the kid, the same for all its partitions
+     * @param partition number of the partition, see {@link FilterRegistry}
+     * @param shared    buffer holding the serialized filter, its position and limit are not changed
+     * @param position  position of the serialized filter in the buffer
+     * @param length    length of the serialized filter in bytes
+     * @param options   options of the load, see {@link PartialVariableHashFilter#load(ByteBuffer, LoadOptions)}
+     * @return replaced filter, it can be closed right away, see {@link #mightContain(String, byte[])}; null when
+     *     there was none
+     * @throws IllegalArgumentException when the kid is registered with another partitioning, the partition is out
+     *                                  of range or the region is not a valid filter
+     */
+    public @Nullable PartialVariableHashFilter put(@NotNull String kid, @NotNull PartitionOffset offset, int partition,
+                                                   @NotNull ByteBuffer shared, int position, int length,
+                                                   @NotNull LoadOptions options) throws IllegalArgumentException {
+        ByteBuffer region = shared.duplicate();
+        region.limit(position + length).position(position);
+        return put(kid, offset, partition, PartialVariableHashFilter.load(region, options));
+    }
+
+    /**
+     * @param kid       key identifier
+     * @param partition number of the partition, see {@link FilterRegistry}
+     * @return filter of the partition, null when there is none
+     */
+    public @Nullable PartialVariableHashFilter get(@NotNull String kid, int partition) {
+        Partitions partitions = kids.get(kid);
+        if (partitions == null || partition < 0 || partition >= partitions.filters.length()) {
+            return null;
+        }
+        return partitions.filters.get(partition);
+    }
+
+    /**
+     * Removes the filter of a partition.
+     *
+     * @param kid       key identifier
+     * @param partition number of the partition, see {@link FilterRegistry}
+     * @return removed filter, null when there was none
+     */
+    public @Nullable PartialVariableHashFilter remove(@NotNull String kid, int partition) {
+        Partitions partitions = kids.get(kid);
+        if (partitions == null || partition < 0 || partition >= partitions.filters.length()) {
+            return null;
+        }
+        return partitions.filters.getAndSet(partition, null);
+    }
+
+    /**
+     * Removes all partitions of a kid, it can be registered with another partitioning afterwards.
+     *
+     * @param kid key identifier
+     * @return true when the kid was registered
+     */
+    public boolean removeKid(@NotNull String kid) {
+        return kids.remove(kid) != null;
+    }
+
+    /**
+     * Check whether the partition of the hash under the kid contains the hash bytes after the partition bytes, see
+     * {@link PartialVariableHashFilter#mightContain(byte[])}.
+     *
+     * @param kid          key identifier
+     * @param dccHashBytes byte array of dcc hash, its leading bytes select the partition
+     * @return true when contained, false when not or when there is no filter for the partition
+     * @throws IllegalStateException when the registered filter of the partition is closed, a replaced or removed
+     *                               filter may be closed while lookups run
+     */
+    public boolean mightContain(@NotNull String kid, byte @NotNull [] dccHashBytes) {
+        Partitions partitions = kids.get(kid);
+        if (partitions == null || dccHashBytes.length < partitions.offset.value) {
+            return false;
+        }
+
+        int partition = 0;
+        for (int i = 0; i < partitions.offset.value; i++) {
+            partition = partition << 8 | (dccHashBytes[i] & 0xFF);
+        }
+        while (true) {
+            PartialVariableHashFilter filter = partitions.filters.get(partition);
+            if (filter == null) {
+                return false;
+            }
+            try {
+                return filter.mightContain(dccHashBytes, partitions.offset.value);
+            } catch (IllegalStateException e) {
+                // the filter was replaced and closed after it was read, the lookup is repeated on its replacement
+                if (partitions.filters.get(partition) == filter) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return registered key identifiers, a live view
+     */
+    public Set<String> getKids() {
+        return Collections.unmodifiableSet(kids.keySet());
+    }
+
+    /**
+     * @return number of registered filters
+     */
+    public int getFilterCount() {
+        int count = 0;
+        for (Partitions partitions : kids.values()) {
+            for (int i = 0; i < partitions.filters.length(); i++) {
+                count += partitions.filters.get(i) != null ? 1 : 0;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return sum of the partial hashes of all registered filters
+     */
+    public long getElementsCount() {
+        long count = 0;
+        for (Partitions partitions : kids.values()) {
+            for (int i = 0; i < partitions.filters.length(); i++) {
+                PartialVariableHashFilter filter = partitions.filters.get(i);
+                count += filter != null ? filter.getElementsCount() : 0;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return sum of {@link PartialVariableHashFilter#getMemoryBytes()} of all registered filters, memory shared by
+     *     filters on top of one buffer is counted per filter region
+     */
+    public long getMemoryBytes() {
+        long bytes = 0;
+        for (Partitions partitions : kids.values()) {
+            for (int i = 0; i < partitions.filters.length(); i++) {
+                PartialVariableHashFilter filter = partitions.filters.get(i);
+                bytes += filter != null ? filter.getMemoryBytes() : 0;
+            }
+        }
+        return bytes;
+    }
+
+    private static void checkPartition(Partitions partitions, int partition) throws IllegalArgumentException {
+        if (partition < 0 || partition >= partitions.filters.length()) {
+            throw new IllegalArgumentException("Partition " + partition + " is out of range for "
+                + partitions.offset);
+        }
+    }
+
+    /**
+     * Filters of one kid, indexed by partition.
+     */
+    private static final class Partitions {
+        private final PartitionOffset offset;
+        private final AtomicReferenceArray<PartialVariableHashFilter> filters;
+
+        Partitions(PartitionOffset offset) {
+            this.offset = offset;
+            this.filters = new AtomicReferenceArray<>(1 << (8 * offset.value));
+        }
+    }
+}
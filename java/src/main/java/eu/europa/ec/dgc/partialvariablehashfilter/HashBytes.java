@@ -0,0 +1,149 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Helpers for fixed size partial hash records.
+ * <p>
+ * Records are ordered like the two's complement big endian numbers the filter historically stored as BigInteger:
+ * the first byte compares signed, all following bytes compare unsigned.
+ */
+final class HashBytes {
+
+    private HashBytes() {
+    }
+
+    /**
+     * Reads a big endian, sign extended number of up to 8 bytes.
+     *
+     * @param src    source array
+     * @param offset position of the first byte
+     * @param length number of bytes to read, at most 8
+     * @return the sign extended value, 0 when length is 0
+     */
+    static long toLong(byte[] src, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        long value = src[offset];
+        for (int i = 1; i < length; i++) {
+            value = (value << 8) | (src[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Writes the lowest length bytes of value in big endian order.
+     *
+     * @param value  value to write
+     * @param dst    destination array
+     * @param offset position of the first byte
+     * @param length number of bytes to write, at most 8
+     */
+    static void fromLong(long value, byte[] dst, int offset, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            dst[offset + i] = (byte) value;
+            value >>= 8;
+        }
+    }
+
+    /**
+     * Compares two records in filter order.
+     *
+     * @return negative, zero or positive like {@link Comparable#compareTo(Object)}
+     */
+    static int compare(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        int result = Byte.compare(a[aOffset], b[bOffset]);
+        if (result != 0 || length == 1) {
+            return result;
+        }
+        return Arrays.compareUnsigned(a, aOffset + 1, aOffset + length, b, bOffset + 1, bOffset + length);
+    }
+
+    /**
+     * Compares a record in a buffer with a record in an array in filter order, using absolute buffer positions.
+     *
+     * @return negative, zero or positive like {@link Comparable#compareTo(Object)}
+     */
+    static int compare(ByteBuffer a, int aOffset, byte[] b, int bOffset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        int result = Byte.compare(a.get(aOffset), b[bOffset]);
+        for (int i = 1; i < length && result == 0; i++) {
+            result = Integer.compare(a.get(aOffset + i) & 0xFF, b[bOffset + i] & 0xFF);
+        }
+        return result;
+    }
+
+    /**
+     * Compares two records in buffers in filter order, using absolute buffer positions.
+     *
+     * @return negative, zero or positive like {@link Comparable#compareTo(Object)}
+     */
+    static int compare(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        int result = Byte.compare(a.get(aOffset), b.get(bOffset));
+        for (int i = 1; i < length && result == 0; i++) {
+            result = Integer.compare(a.get(aOffset + i) & 0xFF, b.get(bOffset + i) & 0xFF);
+        }
+        return result;
+    }
+
+    /**
+     * Reads up to 4 leading bytes of a record as an int that orders like the record when compared unsigned.
+     *
+     * @param src    source array
+     * @param offset position of the record
+     * @param length number of bytes to read, 1 to 4
+     * @return the bytes left aligned, with the sign bit of the first byte flipped
+     */
+    static int prefix(byte[] src, int offset, int length) {
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (src[offset + i] & 0xFF);
+        }
+        return (value << (8 * (Integer.BYTES - length))) ^ Integer.MIN_VALUE;
+    }
+
+    /**
+     * Reads up to 4 leading bytes of a record at an absolute buffer position, see {@link #prefix(byte[], int, int)}.
+     */
+    static int prefix(ByteBuffer src, int offset, int length) {
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (src.get(offset + i) & 0xFF);
+        }
+        return (value << (8 * (Integer.BYTES - length))) ^ Integer.MIN_VALUE;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Compact storage of the sorted partial hashes of a filter.
+ * <p>
+ * Every record has the same number of bytes, the records are kept in filter order (see {@link HashBytes}).
+ */
+abstract class HashStorage {
+
+    /**
+     * Records up to this size are packed into a long each.
+     */
+    static final int MAX_PACKED_RECORD_SIZE = Long.BYTES;
+
+    /**
+     * Loads and sorts of at least this many records are split across a pool when one is given.
+     */
+    static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final int COPY_CHUNK_RECORDS = 4096;
+
+    final int recordSize;
+
+    HashStorage(int recordSize) {
+        this.recordSize = recordSize;
+    }
+
+    /**
+     * Creates the most compact storage for the given record size.
+     *
+     * @param recordSize bytes per record
+     * @param capacity   expected number of records, the storage grows when needed
+     * @return empty storage
+     */
+    static HashStorage create(int recordSize, int capacity) {
+        int initialCapacity = Math.max(capacity, DEFAULT_CAPACITY);
+
+        if (recordSize <= MAX_PACKED_RECORD_SIZE) {
+            return new LongHashStorage(recordSize, initialCapacity);
+        }
+        return new ByteArrayHashStorage(recordSize, initialCapacity);
+    }
+
+    static int grow(int capacity, int required) {
+        long grown = Math.max((long) capacity + (capacity >> 1), required);
+        if (grown > Integer.MAX_VALUE - 8) {
+            if (required > Integer.MAX_VALUE - 8) {
+                throw new OutOfMemoryError("Filter storage exceeds maximum array size");
+            }
+            grown = Integer.MAX_VALUE - 8;
+        }
+        return (int) grown;
+    }
+
+    /**
+     * @return true when records cannot be added, see {@link #copy()}
+     */
+    boolean isReadOnly() {
+        return false;
+    }
+
+    /**
+     * @return true when {@link #compare(int, byte[], int)} and {@link #get(int, byte[], int)} take constant time,
+     *     otherwise records should be accessed in ranges or searched with {@link #contains(byte[], int)}
+     */
+    boolean hasFastRankAccess() {
+        return true;
+    }
+
+    /**
+     * Copies all records into a new, modifiable heap storage.
+     *
+     * @return sorted copy
+     */
+    HashStorage copy() {
+        int count = count();
+        HashStorage copy = create(recordSize, count);
+        byte[] chunk = new byte[Math.min(COPY_CHUNK_RECORDS, count) * recordSize];
+
+        for (int index = 0; index < count; index += COPY_CHUNK_RECORDS) {
+            int records = Math.min(COPY_CHUNK_RECORDS, count - index);
+            get(index, records, chunk, 0);
+            copy.append(chunk, 0, records);
+        }
+        return copy;
+    }
+
+    /**
+     * @return read only view of the serialized records when the storage is backed by a buffer, otherwise null
+     */
+    ByteBuffer records() {
+        return null;
+    }
+
+    /**
+     * Closes a storage outside of the heap, its memory is released once the storage is no longer referenced, so
+     * running accesses finish safely. The storage must not be used afterwards. Heap storages keep working.
+     */
+    void close() {
+    }
+
+    /**
+     * @return bytes of the records including unused capacity, also when they are kept outside of the heap
+     */
+    abstract long memoryBytes();
+
+    /**
+     * @return number of stored records
+     */
+    abstract int count();
+
+    /**
+     * Appends records without keeping the order, {@link #sort(ForkJoinPool)} has to be called before searching.
+     *
+     * @param src     source array
+     * @param offset  position of the first record
+     * @param records number of consecutive records to append
+     */
+    abstract void append(byte[] src, int offset, int records);
+
+    /**
+     * Appends records like {@link #append(byte[], int, int)}, decoding ranges of them concurrently if supported by
+     * the storage.
+     *
+     * @param src     source array
+     * @param offset  position of the first record
+     * @param records number of consecutive records to append
+     * @param pool    pool to decode in
+     */
+    void append(byte[] src, int offset, int records, ForkJoinPool pool) {
+        append(src, offset, records);
+    }
+
+    /**
+     * Sorts all records into filter order. The order is the same with and without pool.
+     *
+     * @param pool pool to sort in, null to sort in the calling thread
+     */
+    abstract void sort(@Nullable ForkJoinPool pool);
+
+    /**
+     * Removes adjacent duplicates, the records have to be sorted.
+     */
+    abstract void deduplicate();
+
+    /**
+     * Inserts one record at its sorted position.
+     *
+     * @param src    source array
+     * @param offset position of the record
+     */
+    abstract void insert(byte[] src, int offset);
+
+    /**
+     * Checks whether the first {@link #recordSize} bytes of key are stored. Lookups must not allocate.
+     *
+     * @param key    source array
+     * @param offset position of the record
+     * @return true when stored
+     */
+    final boolean contains(byte[] key, int offset) {
+        return contains(key, offset, 0, count());
+    }
+
+    /**
+     * Checks whether the first {@link #recordSize} bytes of key are stored in a range of records.
+     * Lookups must not allocate.
+     *
+     * @param key       source array
+     * @param offset    position of the record
+     * @param fromIndex the first record (inclusive) to search in
+     * @param toIndex   the last record (exclusive) to search in
+     * @return true when stored in the range
+     */
+    abstract boolean contains(byte[] key, int offset, int fromIndex, int toIndex);
+
+    /**
+     * Compares a stored record with a key in filter order.
+     *
+     * @param index  index of the stored record
+     * @param key    source array
+     * @param offset position of the key record
+     * @return negative, zero or positive when the stored record is less, equal or greater than the key
+     */
+    abstract int compare(int index, byte[] key, int offset);
+
+    /**
+     * Finds the first record not less than key, starting at fromIndex. The search gallops forward from fromIndex,
+     * so a sequence of ascending keys costs O(log distance) per key instead of O(log count).
+     *
+     * @param key       source array
+     * @param offset    position of the key record
+     * @param fromIndex first record to consider, all records before must be less than key
+     * @return index of the first record not less than key, {@link #count()} when there is none
+     */
+    int lowerBound(byte[] key, int offset, int fromIndex) {
+        int count = count();
+        int low = fromIndex;
+        int step = 1;
+
+        // gallop until the record at high is not less than key
+        int high = fromIndex;
+        while (high < count && compare(high, key, offset) < 0) {
+            low = high + 1;
+            high = fromIndex + step;
+            step <<= 1;
+        }
+        high = Math.min(high, count);
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(middle, key, offset) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Copies one record.
+     *
+     * @param index  index of the record in filter order
+     * @param dst    destination array
+     * @param offset position to write the record to
+     */
+    abstract void get(int index, byte[] dst, int offset);
+
+    /**
+     * Copies consecutive records back to back.
+     *
+     * @param index   index of the first record in filter order
+     * @param records number of records to copy
+     * @param dst     destination array
+     * @param offset  position to write the first record to
+     */
+    void get(int index, int records, byte[] dst, int offset) {
+        for (int i = 0; i < records; i++) {
+            get(index + i, dst, offset + i * recordSize);
+        }
+    }
+}
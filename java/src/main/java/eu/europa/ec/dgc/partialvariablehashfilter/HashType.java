@@ -0,0 +1,48 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+/**
+ * Hash types of a DCC revocation list, every type hashes other data of the certificate with SHA-256.
+ *
+ * @see RevocationChecker
+ */
+public enum HashType {
+    /**
+     * Hash of the certificate signature, for ECDSA of its r value (the first half of the signature).
+     */
+    SIGNATURE,
+    /**
+     * Hash of the unique certificate identifier.
+     */
+    UCI,
+    /**
+     * Hash of the issuing country code followed by the unique certificate identifier.
+     */
+    COUNTRYCODEUCI;
+
+    /**
+     * @return bit of the type in a {@link RevocationChecker#check} result
+     */
+    public int mask() {
+        return 1 << ordinal();
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Options for loading a serialized filter. Instances are immutable, every {@code with} method returns a copy.
+ */
+public final class LoadOptions {
+    private static final LoadOptions DEFAULTS = new LoadOptions();
+
+    private boolean prefixIndex;
+    private StorageLayout layout = StorageLayout.SORTED;
+    private boolean prefilter;
+    private boolean offHeap;
+    private ForkJoinPool pool;
+    private FilterMetrics metrics;
+    private boolean lazyLoad;
+    private Executor backgroundLoadExecutor;
+
+    private LoadOptions() {
+    }
+
+    private LoadOptions(LoadOptions options) {
+        this.prefixIndex = options.prefixIndex;
+        this.layout = options.layout;
+        this.prefilter = options.prefilter;
+        this.offHeap = options.offHeap;
+        this.pool = options.pool;
+        this.metrics = options.metrics;
+        this.lazyLoad = options.lazyLoad;
+        this.backgroundLoadExecutor = options.backgroundLoadExecutor;
+    }
+
+    /**
+     * @return options loading a filter like the constructors without options
+     */
+    public static LoadOptions defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * Builds an index over the leading bits of the partial hashes while loading, lookups then only search the small
+     * range of partial hashes sharing the leading bits of the probe. The number of bits is chosen from the number of
+     * partial hashes, see {@link PartialVariableHashFilter#getPrefixIndexBytes()} for the memory overhead.
+     * The index is only built for the {@link StorageLayout#SORTED} layout.
+     *
+     * @param prefixIndex true to build the index
+     * @return options with the given index setting
+     */
+    public LoadOptions withPrefixIndex(boolean prefixIndex) {
+        LoadOptions options = new LoadOptions(this);
+        options.prefixIndex = prefixIndex;
+        return options;
+    }
+
+    /**
+     * Selects the in-memory layout of the partial hashes, the serialized format is the same for all layouts.
+     *
+     * @param layout layout built once after loading
+     * @return options with the given layout
+     */
+    public LoadOptions withLayout(@NotNull StorageLayout layout) {
+        LoadOptions options = new LoadOptions(this);
+        options.layout = layout;
+        return options;
+    }
+
+    /**
+     * Builds a blocked Bloom filter over the partial hashes after loading. Lookups consult it first and only search
+     * the partial hashes when it cannot rule the probe out, which makes most lookups of absent hashes touch a single
+     * cache line. Results are the same as without prefilter, see
+     * {@link PartialVariableHashFilter#getPrefilterBytes()} for its memory cost.
+     *
+     * @param prefilter true to build the prefilter
+     * @return options with the given prefilter setting
+     */
+    public LoadOptions withPrefilter(boolean prefilter) {
+        LoadOptions options = new LoadOptions(this);
+        options.prefilter = prefilter;
+        return options;
+    }
+
+    /**
+     * Keeps the sorted partial hashes in a direct buffer outside of the heap once loaded, lookups compare them in
+     * place. The heap then only holds the small lookup structures, which keeps very large filters out of garbage
+     * collection. The memory is released by {@link PartialVariableHashFilter#close()} or, without closing, once the
+     * filter is garbage collected. Partial hashes are still collected and sorted on the heap while loading, the
+     * setting only applies to the {@link StorageLayout#SORTED} layout and to filters not already backed by a buffer
+     * or a compressed payload.
+     *
+     * @param offHeap true to keep the partial hashes outside of the heap
+     * @return options with the given off-heap setting
+     */
+    public LoadOptions withOffHeap(boolean offHeap) {
+        LoadOptions options = new LoadOptions(this);
+        options.offHeap = offHeap;
+        return options;
+    }
+
+    /**
+     * Decodes and sorts large filters concurrently in the common pool, see {@link #withParallelLoad(ForkJoinPool)}.
+     *
+     * @param parallel true to load in the common pool, false to load in the calling thread
+     * @return options with the given parallel setting
+     */
+    public LoadOptions withParallelLoad(boolean parallel) {
+        return withParallelLoad(parallel ? ForkJoinPool.commonPool() : null);
+    }
+
+    /**
+     * Decodes and sorts large filters concurrently in the given pool. The partial hashes of an array are decoded in
+     * ranges, the records are sorted with a parallel sort. Filters below 65536 partial hashes, streams and
+     * compressed filters are still decoded in the calling thread. The loaded filter is identical to a sequential
+     * load.
+     *
+     * @param pool pool to load in, null to load in the calling thread
+     * @return options with the given pool
+     */
+    public LoadOptions withParallelLoad(@Nullable ForkJoinPool pool) {
+        LoadOptions options = new LoadOptions(this);
+        options.pool = pool;
+        return options;
+    }
+
+    /**
+     * Attaches metrics to the loaded filter, see {@link PartialVariableHashFilter#setMetrics(FilterMetrics)}. The
+     * load itself is recorded as well.
+     *
+     * @param metrics metrics to record in, null to load without metrics
+     * @return options with the given metrics
+     */
+    public LoadOptions withMetrics(@Nullable FilterMetrics metrics) {
+        LoadOptions options = new LoadOptions(this);
+        options.metrics = metrics;
+        return options;
+    }
+
+    /**
+     * Only reads the filter header when a filter is created from an array or a buffer, see
+     * {@link PartialVariableHashFilter#isLoaded()}. Size and element count are available right away, the partial
+     * hashes are decoded, sorted and indexed by the first call that needs them, e.g. the first lookup, which then
+     * also throws when they are invalid. The data must not be modified until the filter is loaded. Streams are always
+     * loaded right away.
+     *
+     * @param lazyLoad true to defer loading to the first use
+     * @return options with the given lazy setting
+     */
+    public LoadOptions withLazyLoad(boolean lazyLoad) {
+        LoadOptions options = new LoadOptions(this);
+        options.lazyLoad = lazyLoad;
+        options.backgroundLoadExecutor = lazyLoad ? backgroundLoadExecutor : null;
+        return options;
+    }
+
+    /**
+     * Loads filters lazily like {@link #withLazyLoad(boolean)}, but starts loading right away in the background.
+     * A lookup before the load has finished waits for it, {@link PartialVariableHashFilter#whenLoaded()} completes
+     * once it has finished.
+     * <p>
+     * The background load is started by the static factories {@code PartialVariableHashFilter.load} and
+     * {@code PartialVariableHashFilter.map}. The constructors must not hand the unfinished filter to another thread,
+     * they reject these options with an {@link IllegalArgumentException}.
+     *
+     * @param executor executor to load in, null to load in the calling thread
+     * @return options with the given executor
+     */
+    public LoadOptions withBackgroundLoad(@Nullable Executor executor) {
+        LoadOptions options = new LoadOptions(this);
+        options.lazyLoad = executor != null;
+        options.backgroundLoadExecutor = executor;
+        return options;
+    }
+
+    public boolean isPrefixIndex() {
+        return prefixIndex;
+    }
+
+    public StorageLayout getLayout() {
+        return layout;
+    }
+
+    public boolean isPrefilter() {
+        return prefilter;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * @return pool of a parallel load, null for a sequential load
+     */
+    public @Nullable ForkJoinPool getParallelLoadPool() {
+        return pool;
+    }
+
+    public @Nullable FilterMetrics getMetrics() {
+        return metrics;
+    }
+
+    public boolean isLazyLoad() {
+        return lazyLoad;
+    }
+
+    /**
+     * @return executor of a background load, null when not loading in the background
+     */
+    public @Nullable Executor getBackgroundLoadExecutor() {
+        return backgroundLoadExecutor;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+/**
+ * Receives progress updates while a filter is read from a stream.
+ *
+ * @see PartialVariableHashFilter#readFrom(java.io.InputStream, LoadProgressListener)
+ */
+@FunctionalInterface
+public interface LoadProgressListener {
+
+    /**
+     * Called after each chunk of partial hashes was read.
+     *
+     * @param recordsRead partial hashes read so far
+     * @param bytesRead   bytes read so far, including the filter header
+     */
+    void onProgress(int recordsRead, long bytesRead);
+}
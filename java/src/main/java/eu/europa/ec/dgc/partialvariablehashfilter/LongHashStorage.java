@@ -0,0 +1,166 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Storage for records of up to 8 bytes, each record is kept as sign extended long in one sorted array.
+ */
+final class LongHashStorage extends HashStorage {
+    private static final int DECODE_GRANULARITY = 1 << 14;
+
+    private long[] values;
+    private int count;
+
+    LongHashStorage(int recordSize, int capacity) {
+        super(recordSize);
+        this.values = new long[capacity];
+    }
+
+    @Override
+    int count() {
+        return count;
+    }
+
+    @Override
+    long memoryBytes() {
+        return (long) values.length * Long.BYTES;
+    }
+
+    @Override
+    void append(byte[] src, int offset, int records) {
+        ensureCapacity(count + records);
+
+        for (int i = 0; i < records; i++) {
+            values[count++] = HashBytes.toLong(src, offset + i * recordSize, recordSize);
+        }
+    }
+
+    @Override
+    void append(byte[] src, int offset, int records, ForkJoinPool pool) {
+        ensureCapacity(count + records);
+        pool.invoke(new DecodeTask(src, offset, count, count + records));
+        count += records;
+    }
+
+    @Override
+    void sort(ForkJoinPool pool) {
+        if (pool == null) {
+            Arrays.sort(values, 0, count);
+        } else {
+            // the sort forks into the pool of the worker thread it runs in
+            pool.invoke(ForkJoinTask.adapt(() -> Arrays.parallelSort(values, 0, count)));
+        }
+    }
+
+    @Override
+    void deduplicate() {
+        if (count == 0) {
+            return;
+        }
+
+        int unique = 1;
+        for (int i = 1; i < count; i++) {
+            if (values[i] != values[unique - 1]) {
+                values[unique++] = values[i];
+            }
+        }
+        count = unique;
+    }
+
+    @Override
+    void insert(byte[] src, int offset) {
+        long value = HashBytes.toLong(src, offset, recordSize);
+        int position = BinarySearch.binarySearch(values, 0, count, value);
+        if (position < 0) {
+            position = -position - 1;
+        }
+
+        ensureCapacity(count + 1);
+        System.arraycopy(values, position, values, position + 1, count - position);
+        values[position] = value;
+        count++;
+    }
+
+    @Override
+    boolean contains(byte[] key, int offset, int fromIndex, int toIndex) {
+        return BinarySearch.binarySearch(values, fromIndex, toIndex, HashBytes.toLong(key, offset, recordSize)) >= 0;
+    }
+
+    @Override
+    int compare(int index, byte[] key, int offset) {
+        return Long.compare(values[index], HashBytes.toLong(key, offset, recordSize));
+    }
+
+    @Override
+    void get(int index, byte[] dst, int offset) {
+        HashBytes.fromLong(values[index], dst, offset, recordSize);
+    }
+
+    /**
+     * Decodes the records of a range of values, splitting it in halves down to {@link #DECODE_GRANULARITY}.
+     */
+    private final class DecodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] src;
+        private final int offset;
+        private final int from;
+        private final int to;
+
+        /**
+         * @param src    source array
+         * @param offset position of the record for value from
+         * @param from   first value (inclusive) to decode
+         * @param to     last value (exclusive) to decode
+         */
+        DecodeTask(byte[] src, int offset, int from, int to) {
+            this.src = src;
+            this.offset = offset;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= DECODE_GRANULARITY) {
+                for (int i = from; i < to; i++) {
+                    values[i] = HashBytes.toLong(src, offset + (i - from) * recordSize, recordSize);
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new DecodeTask(src, offset, from, middle),
+                new DecodeTask(src, offset + (middle - from) * recordSize, middle, to));
+        }
+    }
+
+    private void ensureCapacity(int required) {
+        if (required > values.length) {
+            values = Arrays.copyOf(values, grow(values.length, required));
+        }
+    }
+}
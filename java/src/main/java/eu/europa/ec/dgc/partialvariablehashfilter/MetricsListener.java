@@ -0,0 +1,48 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+/**
+ * Receives load and serialization events of the filters a {@link FilterMetrics} is attached to. Lookups are only
+ * counted, they are not reported one by one.
+ *
+ * @see FilterMetrics#addListener(MetricsListener)
+ */
+public interface MetricsListener {
+
+    /**
+     * Called after a filter was loaded, including filters created by applying a delta.
+     *
+     * @param elements partial hashes of the loaded filter
+     * @param nanos    duration of the load
+     */
+    default void onLoad(int elements, long nanos) {
+    }
+
+    /**
+     * Called after a filter was serialized.
+     *
+     * @param bytes number of bytes written
+     * @param nanos duration of the serialization
+     */
+    default void onSerialize(long bytes, long nanos) {
+    }
+}
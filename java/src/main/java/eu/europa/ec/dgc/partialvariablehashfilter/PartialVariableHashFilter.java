@@ -26,24 +26,46 @@ package eu.europa.ec.dgc.partialvariablehashfilter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
-import java.util.Comparator;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-public class PartialVariableHashFilter {
-    private List<BigInteger> arrayList;
+public class PartialVariableHashFilter implements AutoCloseable {
+    private static final int HEADER_SIZE = 11;
+    private static final int COPY_CHUNK_SIZE = 64 * 1024;
+    private static final int STREAM_CAPACITY_HINT = 1 << 20;
+    /**
+     * Storages for a declared number of elements start at most this large and grow as elements are added.
+     */
+    static final int MAX_INITIAL_CAPACITY = 1 << 16;
+
+    private HashStorage storage;
+    private PrefixIndex prefixIndex;
+    private BloomPrefilter prefilter;
+    private volatile FilterMetrics metrics;
+    private volatile LazyLoad lazyLoad;
+    private boolean immutable;
     private byte size;
     private float probRate;
     private int definedElementAmount;
-    private int currentElementAmount;
 
     private static final short version = 1;
+    private static final short COMPRESSED_VERSION = 2;
 
     /**
      * Partial variable hash list filter initialization
@@ -51,7 +73,137 @@ public class PartialVariableHashFilter {
      * @param data bytearray of partial variable hashes
      */
     public PartialVariableHashFilter(byte[] data) {
-        readFrom(data);
+        this(data, LoadOptions.defaults());
+    }
+
+    /**
+     * Partial variable hash list filter initialization
+     *
+     * @param data    bytearray of partial variable hashes
+     * @param options options of the load, e.g. to build a prefix index
+     * @throws IllegalArgumentException when the options load in the background, see
+     *                                  {@link #load(byte[], LoadOptions)}
+     */
+    public PartialVariableHashFilter(byte[] data, @NotNull LoadOptions options) throws IllegalArgumentException {
+        this(data, options, false);
+    }
+
+    private PartialVariableHashFilter(byte[] data, LoadOptions options, boolean backgroundLoad) {
+        checkBackgroundLoad(options, backgroundLoad);
+        if (options.isLazyLoad() && deferLoad(ByteBuffer.wrap(data), options, () -> readFrom(data, options))) {
+            return;
+        }
+        long start = System.nanoTime();
+        readFrom(data, options);
+        recordLoad(options.getMetrics(), start);
+    }
+
+    /**
+     * Partial variable hash list filter initialization on top of serialized filter data, e.g. a memory mapped file.
+     * When the partial hashes in the data are sorted, lookups run directly against the buffer without copying it,
+     * the buffer content must not be modified afterwards. Otherwise the partial hashes are copied once and sorted.
+     * The position of the buffer is not changed.
+     *
+     * @param data serialized filter from position to limit
+     * @throws IllegalArgumentException when data is not empty but shorter than the filter header
+     */
+    public PartialVariableHashFilter(@NotNull ByteBuffer data) throws IllegalArgumentException {
+        this(data, LoadOptions.defaults());
+    }
+
+    /**
+     * Partial variable hash list filter initialization on top of serialized filter data, see
+     * {@link #PartialVariableHashFilter(ByteBuffer)}.
+     *
+     * @param data    serialized filter from position to limit
+     * @param options options of the load, e.g. to build a prefix index
+     * @throws IllegalArgumentException when data is not empty but shorter than the filter header, or when the
+     *                                  options load in the background, see {@link #load(ByteBuffer, LoadOptions)}
+     */
+    public PartialVariableHashFilter(@NotNull ByteBuffer data, @NotNull LoadOptions options)
+        throws IllegalArgumentException {
+        this(data, options, false);
+    }
+
+    private PartialVariableHashFilter(ByteBuffer data, LoadOptions options, boolean backgroundLoad) {
+        checkBackgroundLoad(options, backgroundLoad);
+        ByteBuffer view = data.duplicate();
+        if (options.isLazyLoad() && deferLoad(view, options, () -> readFrom(view, options))) {
+            return;
+        }
+        long start = System.nanoTime();
+        readFrom(data, options);
+        recordLoad(options.getMetrics(), start);
+    }
+
+    /**
+     * Creates a filter like {@link #PartialVariableHashFilter(byte[], LoadOptions)} and starts loading it in the
+     * background executor of the options, see {@link LoadOptions#withBackgroundLoad(Executor)}.
+     *
+     * @param data    bytearray of partial variable hashes
+     * @param options options of the load
+     * @return created filter
+     */
+    public static PartialVariableHashFilter load(byte @NotNull [] data, @NotNull LoadOptions options) {
+        return new PartialVariableHashFilter(data, options, true).startBackgroundLoad(options);
+    }
+
+    /**
+     * Creates a filter like {@link #PartialVariableHashFilter(ByteBuffer, LoadOptions)} and starts loading it in the
+     * background executor of the options, see {@link LoadOptions#withBackgroundLoad(Executor)}.
+     *
+     * @param data    serialized filter from position to limit
+     * @param options options of the load
+     * @return created filter
+     * @throws IllegalArgumentException when data is not empty but shorter than the filter header
+     */
+    public static PartialVariableHashFilter load(@NotNull ByteBuffer data, @NotNull LoadOptions options)
+        throws IllegalArgumentException {
+        return new PartialVariableHashFilter(data, options, true).startBackgroundLoad(options);
+    }
+
+    /**
+     * A constructor must not hand the unfinished filter to another thread, background loads are started by the
+     * static factories.
+     */
+    private static void checkBackgroundLoad(LoadOptions options, boolean backgroundLoad)
+        throws IllegalArgumentException {
+        if (!backgroundLoad && options.getBackgroundLoadExecutor() != null) {
+            throw new IllegalArgumentException("Background loads are started by PartialVariableHashFilter.load");
+        }
+    }
+
+    /**
+     * Memory maps a region of a serialized filter file, see {@link #PartialVariableHashFilter(ByteBuffer)}.
+     * Several processes mapping the same file share its pages.
+     *
+     * @param channel  channel of the filter file, opened for reading
+     * @param position position of the serialized filter in the file
+     * @param length   length of the serialized filter in bytes
+     * @return filter backed by the mapped file
+     * @throws IOException              when the file cannot be mapped
+     * @throws IllegalArgumentException when the region is not empty but shorter than the filter header
+     */
+    public static PartialVariableHashFilter map(@NotNull FileChannel channel, long position, long length)
+        throws IOException, IllegalArgumentException {
+        return map(channel, position, length, LoadOptions.defaults());
+    }
+
+    /**
+     * Memory maps a region of a serialized filter file, see {@link #map(FileChannel, long, long)}.
+     *
+     * @param channel  channel of the filter file, opened for reading
+     * @param position position of the serialized filter in the file
+     * @param length   length of the serialized filter in bytes
+     * @param options  options of the load, e.g. to build a prefix index
+     * @return filter backed by the mapped file
+     * @throws IOException              when the file cannot be mapped
+     * @throws IllegalArgumentException when the region is not empty but shorter than the filter header
+     */
+    public static PartialVariableHashFilter map(@NotNull FileChannel channel, long position, long length,
+                                                @NotNull LoadOptions options)
+        throws IOException, IllegalArgumentException {
+        return load(channel.map(FileChannel.MapMode.READ_ONLY, position, length), options);
     }
 
     /**
@@ -64,30 +216,271 @@ public class PartialVariableHashFilter {
      * @see PartitionOffset
      */
     public PartialVariableHashFilter(byte minSize, @NotNull PartitionOffset partitionOffset, int numberOfElements, float propRate) {
-        byte actualSize = calc(partitionOffset.value, numberOfElements, propRate);
-
         this.definedElementAmount = numberOfElements;
-        this.currentElementAmount = 0;
-        this.arrayList = new ArrayList<>();
         this.probRate = propRate;
+        this.size = filterSize(minSize, partitionOffset, numberOfElements, propRate);
+        this.storage = HashStorage.create(size, Math.min(numberOfElements, MAX_INITIAL_CAPACITY));
+    }
 
-        if (actualSize < minSize) {
-            size = minSize;
-        } else {
-            size = actualSize;
+    private PartialVariableHashFilter(byte size, float probRate, int definedElementAmount, HashStorage storage,
+                                      boolean immutable) {
+        this.size = size;
+        this.probRate = probRate;
+        this.definedElementAmount = definedElementAmount;
+        this.storage = storage;
+        this.immutable = immutable;
+    }
+
+    PartialVariableHashFilter(byte size, float probRate, int definedElementAmount, StorageLoader loader,
+                              boolean immutable) {
+        this(size, probRate, definedElementAmount, loader.storage(), immutable);
+        this.prefixIndex = loader.prefixIndex();
+        this.prefilter = loader.prefilter();
+    }
+
+    /**
+     * Reads a serialized filter from a stream, see {@link #readFrom(InputStream, LoadProgressListener)}.
+     *
+     * @param inputStream serialized filter, it is read to its end but not closed
+     * @return filter holding the partial hashes of the stream
+     * @throws IOException when the stream cannot be read or ends within the header or a partial hash
+     */
+    public static PartialVariableHashFilter readFrom(@NotNull InputStream inputStream) throws IOException {
+        return readFrom(inputStream, null);
+    }
+
+    /**
+     * Reads a serialized filter from a stream. The partial hashes are read in chunks straight into the filter
+     * storage, the serialized data is never held in memory as a whole.
+     *
+     * @param inputStream serialized filter, it is read to its end but not closed
+     * @param listener    optional listener notified after every chunk
+     * @return filter holding the partial hashes of the stream, an empty filter for an empty stream
+     * @throws EOFException            when the stream ends within the filter header
+     * @throws TruncatedFilterException when the stream ends within a partial hash
+     * @throws IOException             when the stream cannot be read
+     */
+    public static PartialVariableHashFilter readFrom(@NotNull InputStream inputStream,
+                                                     @Nullable LoadProgressListener listener) throws IOException {
+        return readFrom(inputStream, listener, LoadOptions.defaults());
+    }
+
+    /**
+     * Reads a serialized filter from a stream, see {@link #readFrom(InputStream, LoadProgressListener)}.
+     *
+     * @param inputStream serialized filter, it is read to its end but not closed
+     * @param listener    optional listener notified after every chunk
+     * @param options     options of the load, e.g. to build a prefix index
+     * @return filter holding the partial hashes of the stream, an empty filter for an empty stream
+     * @throws EOFException            when the stream ends within the filter header
+     * @throws TruncatedFilterException when the stream ends within a partial hash
+     * @throws IOException             when the stream cannot be read
+     */
+    public static PartialVariableHashFilter readFrom(@NotNull InputStream inputStream,
+                                                     @Nullable LoadProgressListener listener,
+                                                     @NotNull LoadOptions options) throws IOException {
+        long start = System.nanoTime();
+        PartialVariableHashFilter filter = read(inputStream, listener, options);
+        filter.recordLoad(options.getMetrics(), start);
+        return filter;
+    }
+
+    private static PartialVariableHashFilter read(InputStream inputStream, @Nullable LoadProgressListener listener,
+                                                  LoadOptions options) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        int headerLength = readFully(inputStream, header, 0, HEADER_SIZE);
+        if (headerLength == 0) {
+            return new PartialVariableHashFilter(new byte[0]);
+        }
+        if (headerLength < HEADER_SIZE) {
+            throw new EOFException("Filter data ends within the filter header after " + headerLength + " bytes");
+        }
+
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        short formatVersion = headerBuffer.getShort(0);
+        float probRate = headerBuffer.getFloat(2);
+        int definedElementAmount = headerBuffer.getInt(6);
+        byte size = headerBuffer.get(10);
+        if (formatVersion != version && formatVersion != COMPRESSED_VERSION) {
+            throw new IOException("Unsupported filter version " + formatVersion);
+        }
+        if (size <= 0) {
+            return new PartialVariableHashFilter(size, probRate, definedElementAmount, HashStorage.create(0, 0), false);
+        }
+
+        if (formatVersion == COMPRESSED_VERSION) {
+            // the compressed payload is decoded in blocks, so it is kept as a whole
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(COPY_CHUNK_SIZE);
+            long bytesRead = HEADER_SIZE + inputStream.transferTo(payload);
+            StorageLoader loader;
+            try {
+                loader = compressedLoader(ByteBuffer.wrap(payload.toByteArray()), size, options);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            if (listener != null) {
+                listener.onProgress(loader.count(), bytesRead);
+            }
+            return new PartialVariableHashFilter(size, probRate, definedElementAmount, loader, false);
+        }
+
+        StorageLoader loader = new StorageLoader(size, Math.min(definedElementAmount, STREAM_CAPACITY_HINT), options);
+        byte[] chunk = new byte[Math.max(size, COPY_CHUNK_SIZE - COPY_CHUNK_SIZE % size)];
+        long bytesRead = HEADER_SIZE;
+        int length;
+
+        do {
+            length = readFully(inputStream, chunk, 0, chunk.length);
+            bytesRead += length;
+
+            int records = length / size;
+            loader.append(chunk, 0, records);
+            if (listener != null) {
+                listener.onProgress(loader.count(), bytesRead);
+            }
+
+            if (length % size != 0) {
+                throw new TruncatedFilterException(loader.count(), length % size, size);
+            }
+        } while (length == chunk.length);
+
+        loader.finish();
+        return new PartialVariableHashFilter(size, probRate, definedElementAmount, loader, false);
+    }
+
+    /**
+     * Reads a serialized filter from a channel, see {@link #readFrom(InputStream, LoadProgressListener)}.
+     *
+     * @param channel  serialized filter, it is read to its end but not closed
+     * @param listener optional listener notified after every chunk
+     * @return filter holding the partial hashes of the channel, an empty filter for an empty channel
+     * @throws EOFException            when the channel ends within the filter header
+     * @throws TruncatedFilterException when the channel ends within a partial hash
+     * @throws IOException             when the channel cannot be read
+     */
+    public static PartialVariableHashFilter readFrom(@NotNull ReadableByteChannel channel,
+                                                     @Nullable LoadProgressListener listener) throws IOException {
+        return readFrom(channel, listener, LoadOptions.defaults());
+    }
+
+    /**
+     * Reads a serialized filter from a channel, see {@link #readFrom(InputStream, LoadProgressListener)}.
+     *
+     * @param channel  serialized filter, it is read to its end but not closed
+     * @param listener optional listener notified after every chunk
+     * @param options  options of the load, e.g. to build a prefix index
+     * @return filter holding the partial hashes of the channel, an empty filter for an empty channel
+     * @throws EOFException            when the channel ends within the filter header
+     * @throws TruncatedFilterException when the channel ends within a partial hash
+     * @throws IOException             when the channel cannot be read
+     */
+    public static PartialVariableHashFilter readFrom(@NotNull ReadableByteChannel channel,
+                                                     @Nullable LoadProgressListener listener,
+                                                     @NotNull LoadOptions options) throws IOException {
+        return readFrom(Channels.newInputStream(channel), listener, options);
+    }
+
+    /**
+     * Reads until the array range is full or the stream ends.
+     *
+     * @return number of bytes read, less than length only at the end of the stream
+     */
+    private static int readFully(InputStream inputStream, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = inputStream.read(buffer, offset + total, length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
         }
+        return total;
+    }
 
+    static byte filterSize(byte minSize, PartitionOffset partitionOffset, int numberOfElements, float propRate) {
+        byte actualSize = calc(partitionOffset.value, numberOfElements, propRate);
+
+        if (actualSize < minSize) {
+            return minSize;
+        }
+        return actualSize;
     }
 
-    private byte calc(byte partitionOffset, int numberOfElements, float propRate) {
+    private static byte calc(byte partitionOffset, int numberOfElements, float propRate) {
         double num = Math.ceil(Math.log10(numberOfElements) / Math.log10(2));
         double rounded = num / 8 + num % 8;
         return (byte) Math.ceil(rounded - partitionOffset + propRate);
     }
 
 
-    private void readFrom(byte @NotNull [] data) {
-        arrayList = new ArrayList<>();
+    /**
+     * Creates the loader for the payload of a compressed filter, the payload is searched in place.
+     *
+     * @throws IllegalArgumentException when the payload is truncated or invalid
+     */
+    private static StorageLoader compressedLoader(ByteBuffer payload, byte size, LoadOptions options)
+        throws IllegalArgumentException {
+        StorageLoader loader = new StorageLoader(new RiceHashStorage(payload, size), options);
+        loader.finish();
+        return loader;
+    }
+
+    /**
+     * Reads the header of a lazily loaded filter and defers reading the partial hashes.
+     *
+     * @return false when the data has to be read right away, e.g. because the filter is empty
+     * @throws IllegalArgumentException when the filter version is not supported
+     */
+    private boolean deferLoad(ByteBuffer data, LoadOptions options, Runnable read) throws IllegalArgumentException {
+        int start = data.position();
+        int length = data.remaining();
+        if (length < HEADER_SIZE) {
+            return false;
+        }
+
+        short formatVersion = data.getShort(start);
+        if (formatVersion != version && formatVersion != COMPRESSED_VERSION) {
+            throw new IllegalArgumentException("Unsupported filter version " + formatVersion);
+        }
+        byte recordSize = data.get(start + 10);
+        if (recordSize <= 0 || formatVersion == COMPRESSED_VERSION && length < HEADER_SIZE + Integer.BYTES) {
+            return false;
+        }
+
+        probRate = data.getFloat(start + 2);
+        definedElementAmount = data.getInt(start + 6);
+        size = recordSize;
+        storage = HashStorage.create(size, 0);
+        int count = formatVersion == COMPRESSED_VERSION
+            ? data.getInt(start + HEADER_SIZE) : (length - HEADER_SIZE) / size;
+
+        FilterMetrics loadMetrics = options.getMetrics();
+        LazyLoad lazy = new LazyLoad(() -> {
+            long loadStart = System.nanoTime();
+            read.run();
+            recordLoad(loadMetrics, loadStart);
+        }, count);
+        lazyLoad = lazy;
+        return true;
+    }
+
+    /**
+     * Starts the deferred load in the background executor of the options, after the filter is fully constructed.
+     *
+     * @return this filter
+     */
+    private PartialVariableHashFilter startBackgroundLoad(LoadOptions options) {
+        LazyLoad lazy = lazyLoad;
+        Executor executor = options.getBackgroundLoadExecutor();
+        if (lazy != null && executor != null) {
+            // a failed load is reported by whenLoaded()
+            CompletableFuture.runAsync(() -> lazy.load(this), executor);
+        }
+        return this;
+    }
+
+    private void readFrom(byte @NotNull [] data, LoadOptions options) {
+        storage = HashStorage.create(size, 0);
 
         if (data.length == 0) {
             return;
@@ -96,120 +489,911 @@ public class PartialVariableHashFilter {
         ByteArrayInputStream inputStream = new ByteArrayInputStream(data);
         DataInputStream dataInputStream = new DataInputStream(inputStream);
 
+        short formatVersion;
         try {
-            int version = dataInputStream.readShort(); // for later compatibility
+            formatVersion = dataInputStream.readShort();
             probRate = dataInputStream.readFloat();
             definedElementAmount = dataInputStream.readInt();
             size = dataInputStream.readByte();
-            currentElementAmount = 0;
-
-            byte[] pvh = new byte[size];
-
-            int offset = 0;
-            int numberOfBytesRead;
-
-            while (true) {
-                numberOfBytesRead = dataInputStream.read(pvh, offset, size - offset);
-
-                if(numberOfBytesRead < 0) {
-                    //end of data reached
-                    break;
-                } else {
-                    offset += numberOfBytesRead;
-                    if (offset == size) {
-                        arrayList.add(new BigInteger(pvh));
-                        offset = 0;
-                        currentElementAmount++;
-                    }
+        } catch (IOException e) {
+            Logger.getGlobal().warning("Filter data ends within the filter header after " + data.length + " bytes");
+            return;
+        }
+
+        if (formatVersion != version && formatVersion != COMPRESSED_VERSION) {
+            throw new IllegalArgumentException("Unsupported filter version " + formatVersion);
+        }
+        if (size <= 0) {
+            return;
+        }
+
+        if (formatVersion == COMPRESSED_VERSION) {
+            ByteBuffer payload = ByteBuffer.wrap(Arrays.copyOfRange(data, HEADER_SIZE, data.length));
+            StorageLoader loader = compressedLoader(payload, size, options);
+            storage = loader.storage();
+            prefixIndex = loader.prefixIndex();
+            prefilter = loader.prefilter();
+            return;
+        }
+
+        // records are fixed size, an incomplete trailing record is dropped
+        int records = (data.length - HEADER_SIZE) / size;
+        warnTruncated(records, (data.length - HEADER_SIZE) % size);
+
+        StorageLoader loader = new StorageLoader(size, records, options);
+        loader.append(data, HEADER_SIZE, records);
+        loader.finish();
+        storage = loader.storage();
+        prefixIndex = loader.prefixIndex();
+        prefilter = loader.prefilter();
+    }
+
+
+    private void readFrom(@NotNull ByteBuffer data, LoadOptions options) {
+        storage = HashStorage.create(size, 0);
+
+        if (!data.hasRemaining()) {
+            return;
+        }
+        if (data.remaining() < HEADER_SIZE) {
+            throw new IllegalArgumentException("Filter data is shorter than the filter header");
+        }
+
+        ByteBuffer buffer = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int start = buffer.position();
+        short formatVersion = buffer.getShort(start);
+        probRate = buffer.getFloat(start + 2);
+        definedElementAmount = buffer.getInt(start + 6);
+        size = buffer.get(start + 10);
+
+        if (formatVersion != version && formatVersion != COMPRESSED_VERSION) {
+            throw new IllegalArgumentException("Unsupported filter version " + formatVersion);
+        }
+        if (size <= 0) {
+            return;
+        }
+
+        if (formatVersion == COMPRESSED_VERSION) {
+            buffer.position(start + HEADER_SIZE);
+            StorageLoader loader = compressedLoader(buffer, size, options);
+            storage = loader.storage();
+            prefixIndex = loader.prefixIndex();
+            prefilter = loader.prefilter();
+            return;
+        }
+
+        // records are fixed size, an incomplete trailing record is dropped
+        int records = (buffer.remaining() - HEADER_SIZE) / size;
+        warnTruncated(records, (buffer.remaining() - HEADER_SIZE) % size);
+        buffer.position(start + HEADER_SIZE);
+        buffer.limit(start + HEADER_SIZE + records * size);
+
+        StorageLoader loader = new StorageLoader(size, records, options);
+        if (!loader.wrapIfSorted(buffer)) {
+            if (buffer.hasArray()) {
+                loader.append(buffer.array(), buffer.arrayOffset() + buffer.position(), records);
+            } else {
+                byte[] chunk = new byte[Math.max(size, COPY_CHUNK_SIZE - COPY_CHUNK_SIZE % size)];
+                while (buffer.hasRemaining()) {
+                    int length = Math.min(chunk.length, buffer.remaining());
+                    buffer.get(chunk, 0, length);
+                    loader.append(chunk, 0, length / size);
                 }
             }
-
-        }catch (IOException e) {
-            e.printStackTrace();
         }
-        arrayList.sort(Comparator.naturalOrder());
+        loader.finish();
+        storage = loader.storage();
+        prefixIndex = loader.prefixIndex();
+        prefilter = loader.prefilter();
     }
 
 
+    /**
+     * Serializes the filter.
+     *
+     * @return header followed by the sorted partial hashes
+     * @throws IOException when the filter cannot be serialized
+     */
     public byte[] writeTo() throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
-
-        // write header bytes
-        dataOutputStream.writeShort(version);
-        dataOutputStream.writeFloat(this.probRate);
-        dataOutputStream.writeInt(this.definedElementAmount);
-        dataOutputStream.writeByte(this.size);
-
-        // write data
-        for (BigInteger bigInteger : arrayList) {
-            if(bigInteger != null) {
-                byte[] bytes = bigInteger.toByteArray();
-                int length = bytes.length;
-
-                while (length < size) {
-                    outputStream.write(0);
-                    length++;
-                }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(HEADER_SIZE + getElementsCount() * size);
+        writeTo(outputStream);
+        return outputStream.toByteArray();
+    }
 
-                dataOutputStream.write(bytes);
-            }
+    /**
+     * Serializes the filter into a stream. The partial hashes are copied from the storage in chunks, the
+     * serialized filter is never held in memory as a whole.
+     *
+     * @param outputStream target stream, it is neither flushed nor closed
+     * @throws IOException when the stream cannot be written
+     */
+    public void writeTo(@NotNull OutputStream outputStream) throws IOException {
+        long start = System.nanoTime();
+        awaitLoad();
+        outputStream.write(header(version).array());
+
+        int count = storage.count();
+        byte[] chunk = new byte[Math.min(recordsPerChunk(), count) * size];
+        for (int index = 0; index < count; ) {
+            int records = Math.min(count - index, chunk.length / size);
+            storage.get(index, records, chunk, 0);
+            outputStream.write(chunk, 0, records * size);
+            index += records;
+        }
+        recordSerialize(HEADER_SIZE + (long) count * size, start);
+    }
+
+    /**
+     * Serializes the filter into a channel. A filter on top of a buffer, e.g. a memory mapped file, writes its
+     * partial hashes straight from the buffer, other filters copy them from the storage in chunks.
+     *
+     * @param channel target channel, it is not closed
+     * @throws IOException when the channel cannot be written
+     */
+    public void writeTo(@NotNull WritableByteChannel channel) throws IOException {
+        long start = System.nanoTime();
+        awaitLoad();
+        writeFully(channel, header(version));
+
+        int count = storage.count();
+        ByteBuffer serializedRecords = storage.records();
+        if (serializedRecords != null) {
+            writeFully(channel, serializedRecords);
+            recordSerialize(HEADER_SIZE + (long) count * size, start);
+            return;
         }
 
+        byte[] chunk = new byte[Math.min(recordsPerChunk(), count) * size];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        for (int index = 0; index < count; ) {
+            int records = Math.min(count - index, chunk.length / size);
+            storage.get(index, records, chunk, 0);
+            buffer.clear().limit(records * size);
+            writeFully(channel, buffer);
+            index += records;
+        }
+        recordSerialize(HEADER_SIZE + (long) count * size, start);
+    }
+
+    /**
+     * Serializes the filter in the compressed version 2 format. The sorted partial hashes are Golomb-Rice coded in
+     * blocks with a block index, see {@link RiceHashStorage}. A filter loaded from this format keeps the coded
+     * payload and searches it by decoding a single block per lookup.
+     *
+     * @return header followed by the coded partial hashes
+     * @throws IOException when the filter cannot be serialized
+     */
+    public byte[] writeCompressed() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        writeCompressedTo(outputStream);
         return outputStream.toByteArray();
     }
 
     /**
-     * Add hash data into searchable array of BigIntegers.
+     * Serializes the filter in the compressed version 2 format into a stream, see {@link #writeCompressed()}.
+     *
+     * @param outputStream target stream, it is neither flushed nor closed
+     * @throws IOException when the stream cannot be written
+     */
+    public void writeCompressedTo(@NotNull OutputStream outputStream) throws IOException {
+        long start = System.nanoTime();
+        awaitLoad();
+        outputStream.write(header(COMPRESSED_VERSION).array());
+        long bytes = HEADER_SIZE;
+        if (size > 0) {
+            byte[] payload = RiceHashStorage.encode(storage);
+            outputStream.write(payload);
+            bytes += payload.length;
+        }
+        recordSerialize(bytes, start);
+    }
+
+    private ByteBuffer header(short formatVersion) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putShort(formatVersion);
+        header.putFloat(probRate);
+        header.putInt(definedElementAmount);
+        header.put(size);
+        header.flip();
+        return header;
+    }
+
+    private int recordsPerChunk() {
+        return Math.max(1, COPY_CHUNK_SIZE / Math.max(1, size));
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Add hash data into the sorted partial hash storage.
      *
      * @param data binary hash data
-     * @throws IllegalArgumentException when data is less than partial hash size
+     * @throws IllegalArgumentException      when data is less than partial hash size
+     * @throws UnsupportedOperationException when the filter was created by a {@link Builder}
      */
     public void add(byte @NotNull [] data) throws IllegalArgumentException {
+        if (immutable) {
+            throw new UnsupportedOperationException("Filter created by a builder cannot be modified");
+        }
+        awaitLoad();
 
         if (data.length < size) {
             throw new IllegalArgumentException("Data length cannot be less than partial hash size");
         }
 
-        if (currentElementAmount >= definedElementAmount) {
-            Logger.getGlobal().warning("Filter has more elements than expected. " +
-                "It may result in a higher False Positive Rate than defined!");
+        if (storage.count() >= definedElementAmount) {
+            warnOverfilled();
         }
 
-        arrayList.add(new BigInteger(Arrays.copyOf(data, size)));
-        currentElementAmount++;
-        arrayList.sort(Comparator.naturalOrder());
+        if (storage.isReadOnly()) {
+            HashStorage readOnly = storage;
+            storage = readOnly.copy();
+            readOnly.close();
+        }
+        prefixIndex = null;
+        storage.insert(data, 0);
+        if (prefilter != null) {
+            prefilter.add(data, 0);
+        }
     }
 
     /**
      * Check whether filter contains dcc hash bytes. It will check bytes depending on the filter size value.
+     * The probe is compared in place against the stored partial hashes, a lookup does not allocate.
      *
      * @param dccHashBytes byte array of dcc hash.
      * @return true is contains otherwise false
      */
     public boolean mightContain(byte[] dccHashBytes) {
-        if (dccHashBytes.length < size) {
+        return mightContain(dccHashBytes, 0);
+    }
+
+    /**
+     * Check whether filter contains the dcc hash bytes starting at offset, e.g. the bytes after the partition bytes
+     * of a partitioned hash.
+     *
+     * @param dccHashBytes byte array of dcc hash
+     * @param offset       position of the first byte to check
+     * @return true is contains otherwise false
+     */
+    boolean mightContain(byte[] dccHashBytes, int offset) {
+        awaitLoad();
+        FilterMetrics filterMetrics = metrics;
+        if (filterMetrics == null) {
+            return lookup(dccHashBytes, offset, false);
+        }
+
+        long start = System.nanoTime();
+        boolean result = lookup(dccHashBytes, offset, true);
+        filterMetrics.recordLookup(result, System.nanoTime() - start);
+        return result;
+    }
+
+    private boolean lookup(byte[] dccHashBytes, int offset, boolean counted) {
+        if (dccHashBytes.length - offset < size) {
             return false;
         }
 
-        return new BinarySearch().binarySearch(
-            arrayList.toArray(arrayList.toArray(new BigInteger[0])),
-            0,
-            arrayList.size(),
-            new BigInteger(Arrays.copyOf(dccHashBytes, size)));
+        BloomPrefilter bloomPrefilter = prefilter;
+        if (bloomPrefilter != null && !(counted
+            ? bloomPrefilter.mightContainCounted(dccHashBytes, offset)
+            : bloomPrefilter.mightContain(dccHashBytes, offset))) {
+            return false;
+        }
+
+        PrefixIndex index = prefixIndex;
+        if (index != null) {
+            return storage.contains(dccHashBytes, offset, index.start(dccHashBytes, offset),
+                index.end(dccHashBytes, offset));
+        }
+        return storage.contains(dccHashBytes, offset);
+    }
+
+    /**
+     * Checks many dcc hashes at once. The hashes are sorted and merged against the sorted partial hashes, which is
+     * considerably faster than separate {@link #mightContain(byte[])} calls for larger batches.
+     *
+     * @param hashes byte arrays of dcc hashes
+     * @return result per hash, in the order of the hashes
+     */
+    public boolean[] mightContainAll(byte @NotNull [][] hashes) {
+        awaitLoad();
+        boolean[] result = new boolean[hashes.length];
+        BatchLookup lookup = new BatchLookup(size, hashes.length);
+
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i].length >= size) {
+                lookup.add(i, hashes[i], 0);
+            }
+        }
+        lookup.lookup(storage, prefilter, result);
+        FilterMetrics filterMetrics = metrics;
+        if (filterMetrics != null) {
+            filterMetrics.recordLookups(result);
+        }
+        return result;
+    }
+
+    /**
+     * Checks many dcc hashes packed into one buffer, see {@link #mightContainAll(byte[][])}.
+     *
+     * @param packedHashes dcc hashes from position to limit, one every stride bytes
+     * @param stride       distance between the starts of two hashes, an incomplete trailing hash is ignored
+     * @return result per hash, in the order of the hashes
+     * @throws IllegalArgumentException when stride is less than partial hash size
+     */
+    public boolean[] mightContainAll(@NotNull ByteBuffer packedHashes, int stride) throws IllegalArgumentException {
+        if (stride < size || stride <= 0) {
+            throw new IllegalArgumentException("Stride cannot be less than partial hash size");
+        }
+
+        awaitLoad();
+        int count = packedHashes.remaining() / stride;
+        boolean[] result = new boolean[count];
+        BatchLookup lookup = new BatchLookup(size, count);
+
+        for (int i = 0; i < count; i++) {
+            lookup.add(i, packedHashes, packedHashes.position() + i * stride);
+        }
+        lookup.lookup(storage, prefilter, result);
+        FilterMetrics filterMetrics = metrics;
+        if (filterMetrics != null) {
+            filterMetrics.recordLookups(result);
+        }
+        return result;
+    }
+
+    /**
+     * Unites two filters, see {@link #union(PartialVariableHashFilter, PartialVariableHashFilter, LoadOptions)}.
+     *
+     * @param first  filter to unite
+     * @param second filter to unite
+     * @return new filter holding the partial hashes of both filters once
+     */
+    public static PartialVariableHashFilter union(@NotNull PartialVariableHashFilter first,
+                                                  @NotNull PartialVariableHashFilter second) {
+        return union(first, second, LoadOptions.defaults());
+    }
+
+    /**
+     * Unites two filters by merging their sorted partial hashes in linear time, the filters are not modified. Filters
+     * of different partial hash sizes are united at the smaller size, the longer partial hashes are truncated to it.
+     * Every partial hash is kept once. Large filters are merged concurrently in the pool of the options or the
+     * common pool.
+     *
+     * @param first   filter to unite
+     * @param second  filter to unite
+     * @param options options for the lookup structures and layout of the new filter
+     * @return new filter expecting the defined elements of both filters
+     */
+    public static PartialVariableHashFilter union(@NotNull PartialVariableHashFilter first,
+                                                  @NotNull PartialVariableHashFilter second,
+                                                  @NotNull LoadOptions options) {
+        long definedElements = (long) first.definedElementAmount + second.definedElementAmount;
+        return combine(first, second, StorageMerge.SetOperation.UNION,
+            (int) Math.min(definedElements, Integer.MAX_VALUE), options);
+    }
+
+    /**
+     * Intersects two filters, see
+     * {@link #intersect(PartialVariableHashFilter, PartialVariableHashFilter, LoadOptions)}.
+     *
+     * @param first  filter to intersect
+     * @param second filter to intersect
+     * @return new filter holding the partial hashes contained in both filters once
+     */
+    public static PartialVariableHashFilter intersect(@NotNull PartialVariableHashFilter first,
+                                                      @NotNull PartialVariableHashFilter second) {
+        return intersect(first, second, LoadOptions.defaults());
+    }
+
+    /**
+     * Intersects two filters by merging their sorted partial hashes in linear time, see
+     * {@link #union(PartialVariableHashFilter, PartialVariableHashFilter, LoadOptions)} for filters of different
+     * partial hash sizes.
+     *
+     * @param first   filter to intersect
+     * @param second  filter to intersect
+     * @param options options for the lookup structures and layout of the new filter
+     * @return new filter expecting the smaller number of defined elements of both filters
+     */
+    public static PartialVariableHashFilter intersect(@NotNull PartialVariableHashFilter first,
+                                                      @NotNull PartialVariableHashFilter second,
+                                                      @NotNull LoadOptions options) {
+        return combine(first, second, StorageMerge.SetOperation.INTERSECTION,
+            Math.min(first.definedElementAmount, second.definedElementAmount), options);
+    }
+
+    /**
+     * Removes the partial hashes of one filter from another, see
+     * {@link #difference(PartialVariableHashFilter, PartialVariableHashFilter, LoadOptions)}.
+     *
+     * @param first  filter to remove from
+     * @param second filter holding the partial hashes to remove
+     * @return new filter holding the partial hashes of first that are not contained in second once
+     */
+    public static PartialVariableHashFilter difference(@NotNull PartialVariableHashFilter first,
+                                                       @NotNull PartialVariableHashFilter second) {
+        return difference(first, second, LoadOptions.defaults());
+    }
+
+    /**
+     * Removes the partial hashes of one filter from another by merging their sorted partial hashes in linear time,
+     * see {@link #union(PartialVariableHashFilter, PartialVariableHashFilter, LoadOptions)} for filters of different
+     * partial hash sizes. Unlike {@link #createDelta}, the result is a filter and partial hashes of second missing in
+     * first are ignored.
+     *
+     * @param first   filter to remove from
+     * @param second  filter holding the partial hashes to remove
+     * @param options options for the lookup structures and layout of the new filter
+     * @return new filter expecting the defined elements of first
+     */
+    public static PartialVariableHashFilter difference(@NotNull PartialVariableHashFilter first,
+                                                       @NotNull PartialVariableHashFilter second,
+                                                       @NotNull LoadOptions options) {
+        return combine(first, second, StorageMerge.SetOperation.DIFFERENCE, first.definedElementAmount, options);
+    }
+
+    private static PartialVariableHashFilter combine(PartialVariableHashFilter first, PartialVariableHashFilter second,
+                                                     StorageMerge.SetOperation operation, int definedElementAmount,
+                                                     LoadOptions options) {
+        first.awaitLoad();
+        second.awaitLoad();
+
+        // an empty filter has no meaningful size, e.g. one read from empty data
+        byte width;
+        if (first.storage.count() == 0 && second.storage.count() > 0) {
+            width = second.size;
+        } else if (second.storage.count() == 0 && first.storage.count() > 0) {
+            width = first.size;
+        } else {
+            width = (byte) Math.min(first.size, second.size);
+        }
+
+        ForkJoinPool pool = options.getParallelLoadPool();
+        HashStorage combined = StorageMerge.combine(first.storage, second.storage, Math.max(width, 0), operation,
+            pool != null ? pool : ForkJoinPool.commonPool());
+        if (combined.count() > definedElementAmount) {
+            warnOverfilled();
+        }
+
+        StorageLoader loader = new StorageLoader(combined, options);
+        loader.finish();
+        return new PartialVariableHashFilter(width, Math.max(first.probRate, second.probRate), definedElementAmount,
+            loader, false);
+    }
+
+    /**
+     * Creates the delta which turns base into target, see {@link FilterDelta} for the format. Applying it to base
+     * with {@link #applyDelta(byte[])} results in a filter equal to target.
+     *
+     * @param base   filter the delta applies to
+     * @param target filter the delta leads to
+     * @return serialized delta holding the sorted added and removed partial hashes
+     * @throws IllegalArgumentException when the filters have different partial hash sizes
+     */
+    public static byte[] createDelta(@NotNull PartialVariableHashFilter base, @NotNull PartialVariableHashFilter target)
+        throws IllegalArgumentException {
+        if (base.size != target.size) {
+            throw new IllegalArgumentException("Filters have different partial hash sizes");
+        }
+
+        base.awaitLoad();
+        target.awaitLoad();
+        HashStorage added = StorageMerge.difference(target.storage, base.storage, false);
+        HashStorage removed = StorageMerge.difference(base.storage, target.storage, false);
+        return new FilterDelta(base.getElementsCount(), target.probRate, target.definedElementAmount, target.size,
+            added, removed).writeTo();
+    }
+
+    /**
+     * Applies a delta created by {@link #createDelta}, see {@link #applyDelta(byte[], LoadOptions)}.
+     *
+     * @param delta serialized delta
+     * @return new filter holding the partial hashes after the update
+     * @throws IllegalArgumentException when the delta is invalid or does not apply to this filter
+     */
+    public PartialVariableHashFilter applyDelta(byte @NotNull [] delta) throws IllegalArgumentException {
+        return applyDelta(delta, LoadOptions.defaults());
+    }
+
+    /**
+     * Applies a delta created by {@link #createDelta}. The sorted removed and added partial hashes are merged with the
+     * stored ones in linear time, this filter is not modified.
+     *
+     * @param delta   serialized delta
+     * @param options options for the lookup structures and layout of the new filter
+     * @return new filter holding the partial hashes after the update
+     * @throws IllegalArgumentException when the delta is invalid, has a different partial hash size or base element
+     *                                  count, or removes a partial hash that is not stored
+     */
+    public PartialVariableHashFilter applyDelta(byte @NotNull [] delta, @NotNull LoadOptions options)
+        throws IllegalArgumentException {
+        long start = System.nanoTime();
+        FilterDelta filterDelta = FilterDelta.readFrom(delta);
+        if (filterDelta.size != size) {
+            throw new IllegalArgumentException("Delta has a different partial hash size");
+        }
+        if (filterDelta.baseElementCount != getElementsCount()) {
+            throw new IllegalArgumentException("Delta does not apply to a filter with " + getElementsCount()
+                + " elements");
+        }
+
+        awaitLoad();
+        HashStorage remaining = StorageMerge.difference(storage, filterDelta.removed, true);
+        StorageLoader loader = new StorageLoader(StorageMerge.merge(remaining, filterDelta.added), options);
+        loader.finish();
+        PartialVariableHashFilter filter = new PartialVariableHashFilter(size, filterDelta.probRate,
+            filterDelta.definedElementAmount, loader, false);
+        filter.recordLoad(options.getMetrics(), start);
+        return filter;
     }
 
     public byte getSize() {
         return size;
     }
 
+    /**
+     * Compatibility view of the stored partial hashes, every call creates new BigInteger instances.
+     *
+     * @return partial hashes in ascending order
+     */
     public BigInteger[] getArray() {
-        return arrayList.toArray(new BigInteger[0]);
+        awaitLoad();
+        BigInteger[] array = new BigInteger[storage.count()];
+        byte[] chunk = new byte[Math.min(recordsPerChunk(), array.length) * size];
+
+        for (int index = 0; index < array.length; ) {
+            int records = Math.min(array.length - index, chunk.length / size);
+            storage.get(index, records, chunk, 0);
+            for (int i = 0; i < records; i++) {
+                array[index++] = new BigInteger(chunk, i * size, size);
+            }
+        }
+
+        return array;
     }
 
+    /**
+     * @return number of partial hashes, also before a lazily loaded filter is loaded
+     */
     public int getElementsCount() {
-        return currentElementAmount;
+        LazyLoad lazy = lazyLoad;
+        return lazy != null ? lazy.count : storage.count();
     }
 
-}
+    float getProbRate() {
+        return probRate;
+    }
+
+    int getDefinedElementAmount() {
+        return definedElementAmount;
+    }
+
+    HashStorage storage() {
+        awaitLoad();
+        return storage;
+    }
 
+    /**
+     * Memory overhead of the prefix index requested by {@link LoadOptions#withPrefixIndex(boolean)}. The index is
+     * dropped when hashes are added to the filter.
+     *
+     * @return approximate size of the prefix index in bytes, 0 when the filter has no prefix index
+     */
+    public long getPrefixIndexBytes() {
+        PrefixIndex index = isLoaded() ? prefixIndex : null;
+        return index == null ? 0 : index.memoryBytes();
+    }
+
+    /**
+     * Memory cost of the prefilter requested by {@link LoadOptions#withPrefilter(boolean)}.
+     *
+     * @return approximate size of the prefilter in bytes, 0 when the filter has no prefilter
+     */
+    public long getPrefilterBytes() {
+        BloomPrefilter bloomPrefilter = isLoaded() ? prefilter : null;
+        return bloomPrefilter == null ? 0 : bloomPrefilter.memoryBytes();
+    }
+
+    /**
+     * Share of {@link #mightContain(byte[])} calls answered by the prefilter alone. Only single lookups while
+     * metrics are attached are counted, see {@link #setMetrics(FilterMetrics)}, lookups without metrics and batch
+     * lookups do not touch the counters.
+     *
+     * @return rejection rate between 0 and 1, 0 when the filter has no prefilter or no lookup was counted yet
+     */
+    public double getPrefilterRejectionRate() {
+        BloomPrefilter bloomPrefilter = isLoaded() ? prefilter : null;
+        return bloomPrefilter == null ? 0 : bloomPrefilter.rejectionRate();
+    }
+
+    /**
+     * @return bytes held by the partial hashes and lookup structures, including memory mapped and off-heap partial
+     *     hashes, 0 before a lazily loaded filter is loaded
+     */
+    public long getMemoryBytes() {
+        if (!isLoaded()) {
+            return 0;
+        }
+        return storage.memoryBytes() + getPrefixIndexBytes() + getPrefilterBytes();
+    }
+
+    /**
+     * Releases the partial hashes kept outside of the heap, see {@link LoadOptions#withOffHeap(boolean)}. Closing
+     * may run concurrently with lookups, later lookups throw {@link IllegalStateException} and the memory is released
+     * by the garbage collector once the filter is no longer referenced, after the running lookups finished. A loaded
+     * filter kept on the heap stays usable, closing is optional for it.
+     * Closing a lazily loaded filter waits for a running load, a filter that was not loaded yet is never loaded and
+     * every later use throws {@link IllegalStateException}.
+     */
+    @Override
+    public void close() {
+        LazyLoad lazy = lazyLoad;
+        if (lazy != null) {
+            synchronized (lazy) {
+                if (lazyLoad == lazy) {
+                    lazy.close();
+                    return;
+                }
+            }
+        }
+        storage.close();
+    }
+
+    /**
+     * @return false while a filter created with {@link LoadOptions#withLazyLoad(boolean)} is not loaded yet
+     */
+    public boolean isLoaded() {
+        return lazyLoad == null;
+    }
+
+    /**
+     * Completes once a lazily loaded filter is loaded, right away for other filters. Without a background executor
+     * the load happens on the first use of the filter.
+     *
+     * @return future completing with this filter, or exceptionally when the partial hashes cannot be loaded, every
+     *     later use of the filter then throws the exception of the load, or when the filter is closed before it was
+     *     loaded
+     */
+    public CompletableFuture<PartialVariableHashFilter> whenLoaded() {
+        LazyLoad lazy = lazyLoad;
+        return lazy == null ? CompletableFuture.completedFuture(this) : lazy.loaded.copy();
+    }
+
+    private void awaitLoad() {
+        LazyLoad lazy = lazyLoad;
+        if (lazy != null) {
+            lazy.load(this);
+        }
+    }
+
+    /**
+     * Attaches metrics recording the lookups and serializations of this filter, replacing the metrics attached
+     * before. One instance may be shared by many filters. Without metrics a lookup only checks for them, with metrics
+     * it additionally reads the clock twice.
+     *
+     * @param metrics metrics to record in, null to stop recording
+     */
+    public synchronized void setMetrics(@Nullable FilterMetrics metrics) {
+        FilterMetrics previous = this.metrics;
+        if (previous == metrics) {
+            return;
+        }
+        if (previous != null) {
+            previous.detach(this);
+        }
+        if (metrics != null) {
+            metrics.attach(this);
+        }
+        this.metrics = metrics;
+    }
+
+    public @Nullable FilterMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void recordLoad(@Nullable FilterMetrics loadMetrics, long start) {
+        if (loadMetrics != null) {
+            setMetrics(loadMetrics);
+            loadMetrics.recordLoad(getElementsCount(), System.nanoTime() - start);
+        }
+    }
+
+    private void recordSerialize(long bytes, long start) {
+        FilterMetrics filterMetrics = metrics;
+        if (filterMetrics != null) {
+            filterMetrics.recordSerialize(bytes, System.nanoTime() - start);
+        }
+    }
+
+    private void warnTruncated(int records, int trailingBytes) {
+        if (trailingBytes != 0) {
+            Logger.getGlobal().warning(new TruncatedFilterException(records, trailingBytes, size).getMessage()
+                + ", the incomplete partial hash is ignored");
+        }
+    }
+
+    static void warnOverfilled() {
+        Logger.getGlobal().warning("Filter has more elements than expected. " +
+            "It may result in a higher False Positive Rate than defined!");
+    }
+
+    /**
+     * Pending load of a lazily loaded filter, the first thread to use the filter loads it while others wait. A failed
+     * load is final, the data does not change.
+     */
+    private static final class LazyLoad {
+        private final Runnable read;
+        private final int count;
+        private final CompletableFuture<PartialVariableHashFilter> loaded = new CompletableFuture<>();
+        private RuntimeException failure;
+        private boolean closed;
+
+        private LazyLoad(Runnable read, int count) {
+            this.read = read;
+            this.count = count;
+        }
+
+        /**
+         * @throws IllegalArgumentException when the partial hashes are invalid, later calls throw the same exception
+         * @throws IllegalStateException    when the filter was closed before it was loaded
+         */
+        private synchronized void load(PartialVariableHashFilter filter)
+            throws IllegalArgumentException, IllegalStateException {
+            if (filter.lazyLoad != this) {
+                return;
+            }
+            if (closed) {
+                throw new IllegalStateException("Filter is closed");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            try {
+                read.run();
+            } catch (RuntimeException e) {
+                failure = e;
+                loaded.completeExceptionally(e);
+                throw e;
+            }
+            filter.lazyLoad = null;
+            loaded.complete(filter);
+        }
+
+        /**
+         * Prevents the load, the filter is closed before it was used.
+         */
+        private synchronized void close() {
+            closed = true;
+            loaded.completeExceptionally(new IllegalStateException("Filter is closed"));
+        }
+    }
+
+    /**
+     * Collects partial hashes and sorts them once on {@link #build()}, instead of sorting on every
+     * {@link PartialVariableHashFilter#add(byte[])}. Built filters are immutable.
+     */
+    public static class Builder {
+        private final byte size;
+        private final float probRate;
+        private final int definedElementAmount;
+        private final byte[] record;
+        private HashStorage storage;
+        private boolean deduplicate;
+
+        /**
+         * Filter builder initialization, the partial hash size is calculated like for
+         * {@link PartialVariableHashFilter#PartialVariableHashFilter(byte, PartitionOffset, int, float)}.
+         *
+         * @param minSize          minimum size of the filter
+         * @param partitionOffset  coordinate = 16, vector = 8, point = 0
+         * @param numberOfElements elements in the filter
+         * @param propRate         probability rate
+         * @see PartitionOffset
+         */
+        public Builder(byte minSize, @NotNull PartitionOffset partitionOffset, int numberOfElements, float propRate) {
+            this.size = filterSize(minSize, partitionOffset, numberOfElements, propRate);
+            this.probRate = propRate;
+            this.definedElementAmount = numberOfElements;
+            this.record = new byte[size];
+            this.storage = HashStorage.create(size, Math.min(numberOfElements, MAX_INITIAL_CAPACITY));
+        }
+
+        /**
+         * Removes duplicate partial hashes on build. Without deduplication the built filter writes the same bytes as
+         * a filter filled by {@link PartialVariableHashFilter#add(byte[])}.
+         *
+         * @param deduplicate true to keep every partial hash only once
+         * @return this builder
+         */
+        public Builder deduplicate(boolean deduplicate) {
+            this.deduplicate = deduplicate;
+            return this;
+        }
+
+        /**
+         * Add hash data, only the first size bytes are kept.
+         *
+         * @param data binary hash data
+         * @return this builder
+         * @throws IllegalArgumentException when data is less than partial hash size
+         */
+        public Builder add(byte @NotNull [] data) throws IllegalArgumentException {
+            if (data.length < size) {
+                throw new IllegalArgumentException("Data length cannot be less than partial hash size");
+            }
+
+            checkNotBuilt();
+            storage.append(data, 0, 1);
+            return this;
+        }
+
+        /**
+         * Add hash data stored in a buffer, the buffer position is not changed.
+         *
+         * @param buffer buffer holding the hash
+         * @param offset absolute position of the hash in the buffer
+         * @return this builder
+         * @throws IllegalArgumentException when the buffer holds less than partial hash size bytes at offset
+         */
+        public Builder add(@NotNull ByteBuffer buffer, int offset) throws IllegalArgumentException {
+            if (offset < 0 || offset > buffer.limit() - size) {
+                throw new IllegalArgumentException("Data length cannot be less than partial hash size");
+            }
+
+            checkNotBuilt();
+            for (int i = 0; i < size; i++) {
+                record[i] = buffer.get(offset + i);
+            }
+            storage.append(record, 0, 1);
+            return this;
+        }
+
+        /**
+         * Add all hashes.
+         *
+         * @param hashes binary hash data
+         * @return this builder
+         * @throws IllegalArgumentException when a hash is less than partial hash size
+         */
+        public Builder addAll(@NotNull Iterable<byte[]> hashes) throws IllegalArgumentException {
+            for (byte[] hash : hashes) {
+                add(hash);
+            }
+            return this;
+        }
+
+        /**
+         * Sorts the collected partial hashes once and creates the filter. The builder cannot be used afterwards.
+         *
+         * @return immutable filter
+         */
+        public PartialVariableHashFilter build() {
+            checkNotBuilt();
+
+            storage.sort(storage.count() >= HashStorage.PARALLEL_THRESHOLD ? ForkJoinPool.commonPool() : null);
+            if (deduplicate) {
+                storage.deduplicate();
+            }
+            if (storage.count() > definedElementAmount) {
+                warnOverfilled();
+            }
+
+            PartialVariableHashFilter filter =
+                new PartialVariableHashFilter(size, probRate, definedElementAmount, storage, true);
+            storage = null;
+            return filter;
+        }
+
+        private void checkNotBuilt() {
+            if (storage == null) {
+                throw new IllegalStateException("Filter was already built");
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Maps the leading bits of a record to the range of sorted records starting with these bits. Partial hashes are
+ * prefixes of cryptographic hashes, so the ranges are small and about equally sized.
+ */
+final class PrefixIndex {
+    /**
+     * Targeted average number of records per bucket.
+     */
+    static final int BUCKET_SIZE = 8;
+
+    private static final int MAX_BITS = 24;
+
+    private final int bits;
+    private final int[] offsets;
+
+    private PrefixIndex(int bits, int[] offsets) {
+        this.bits = bits;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Chooses the number of index bits for a filter.
+     *
+     * @param recordSize bytes per record
+     * @param count      number of records
+     * @return number of bits, 0 when an index is not worthwhile
+     */
+    static int bitsFor(int recordSize, long count) {
+        int bits = 63 - Long.numberOfLeadingZeros(Math.max(1, count / BUCKET_SIZE));
+        return Math.min(bits, Math.min(MAX_BITS, recordSize * 8));
+    }
+
+    /**
+     * @return first record in the bucket of key
+     */
+    int start(byte[] key, int offset) {
+        return offsets[bucket(key, offset)];
+    }
+
+    /**
+     * @return first record after the bucket of key
+     */
+    int end(byte[] key, int offset) {
+        return offsets[bucket(key, offset) + 1];
+    }
+
+    int bits() {
+        return bits;
+    }
+
+    /**
+     * @return approximate heap size of the index in bytes
+     */
+    long memoryBytes() {
+        return 16L + 4L * offsets.length;
+    }
+
+    private int bucket(byte[] key, int offset) {
+        return HashBytes.prefix(key, offset, Math.min(Integer.BYTES, (bits + 7) / 8)) >>> (Integer.SIZE - bits);
+    }
+
+    /**
+     * Counts records per bucket while they are loaded, the order of the records does not matter.
+     */
+    static final class Counter {
+        private final int recordSize;
+        private final int prefixBytes;
+        private final int bits;
+        private final int[] counts;
+
+        /**
+         * @param recordSize    bytes per record
+         * @param expectedCount expected number of records, the index gets coarser on build when fewer are counted
+         */
+        Counter(int recordSize, long expectedCount) {
+            this.recordSize = recordSize;
+            this.bits = bitsFor(recordSize, expectedCount);
+            this.prefixBytes = Math.min(Integer.BYTES, (bits + 7) / 8);
+            this.counts = new int[1 << bits];
+        }
+
+        void count(byte[] src, int offset, int records) {
+            if (bits == 0) {
+                return;
+            }
+
+            int shift = Integer.SIZE - bits;
+            for (int i = 0; i < records; i++) {
+                counts[HashBytes.prefix(src, offset + i * recordSize, prefixBytes) >>> shift]++;
+            }
+        }
+
+        void count(ByteBuffer src, int offset, int records) {
+            if (bits == 0) {
+                return;
+            }
+
+            int shift = Integer.SIZE - bits;
+            for (int i = 0; i < records; i++) {
+                counts[HashBytes.prefix(src, offset + i * recordSize, prefixBytes) >>> shift]++;
+            }
+        }
+
+        void reset() {
+            Arrays.fill(counts, 0);
+        }
+
+        /**
+         * @param count number of counted records
+         * @return index for the counted records once they are sorted, null when an index is not worthwhile
+         */
+        PrefixIndex build(long count) {
+            int indexBits = Math.min(bits, bitsFor(recordSize, count));
+            if (indexBits == 0) {
+                return null;
+            }
+
+            int merge = bits - indexBits;
+            int[] offsets = new int[(1 << indexBits) + 1];
+            for (int i = 0; i < counts.length; i++) {
+                offsets[(i >>> merge) + 1] += counts[i];
+            }
+            for (int i = 1; i < offsets.length; i++) {
+                offsets[i] += offsets[i - 1];
+            }
+            return new PrefixIndex(indexBits, offsets);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+/**
+ * Reads the records of a storage sequentially in filter order, copying them in chunks so that storages with slow
+ * rank access are walked efficiently.
+ */
+final class RecordCursor {
+    private static final int CHUNK_RECORDS = 4096;
+
+    private final HashStorage storage;
+    private final int recordSize;
+    private final int end;
+    private final byte[] chunk;
+    private int chunkStart;
+    private int chunkRecords;
+    private int index;
+
+    RecordCursor(HashStorage storage) {
+        this(storage, 0, storage.count());
+    }
+
+    /**
+     * @param storage   storage to read
+     * @param fromIndex first record (inclusive) to read
+     * @param toIndex   last record (exclusive) to read
+     */
+    RecordCursor(HashStorage storage, int fromIndex, int toIndex) {
+        this.storage = storage;
+        this.recordSize = storage.recordSize;
+        this.end = toIndex;
+        this.chunk = new byte[Math.max(1, Math.min(CHUNK_RECORDS, toIndex - fromIndex)) * recordSize];
+        this.chunkStart = fromIndex;
+        this.index = fromIndex;
+        fill();
+    }
+
+    boolean hasRecord() {
+        return index < end;
+    }
+
+    /**
+     * @return array holding the current record at {@link #offset()}, valid until {@link #next()} is called
+     */
+    byte[] chunk() {
+        return chunk;
+    }
+
+    int offset() {
+        return (index - chunkStart) * recordSize;
+    }
+
+    void next() {
+        index++;
+        if (index == chunkStart + chunkRecords && index < end) {
+            chunkStart = index;
+            fill();
+        }
+    }
+
+    private void fill() {
+        chunkRecords = Math.min(chunk.length / Math.max(1, recordSize), end - chunkStart);
+        if (chunkRecords > 0) {
+            storage.get(chunkStart, chunkRecords, chunk, 0);
+        }
+    }
+}
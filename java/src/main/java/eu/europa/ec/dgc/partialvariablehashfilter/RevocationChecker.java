@@ -0,0 +1,169 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Checks a certificate against the filters of several hash types with one call. The SHA-256 digests are computed
+ * with a message digest and buffers reused per thread and passed to the filters as they are, each filter compares
+ * its leading {@link PartialVariableHashFilter#getSize()} bytes. After the first call of a thread a check does not
+ * allocate, unless an input is longer than every input before.
+ * <p>
+ * A checker can be shared between threads as long as its filters are not modified.
+ */
+public class RevocationChecker {
+    private static final int DIGEST_LENGTH = 32;
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    private final PartialVariableHashFilter signatureFilter;
+    private final PartialVariableHashFilter uciFilter;
+    private final PartialVariableHashFilter countryCodeUciFilter;
+
+    /**
+     * Revocation checker initialization
+     *
+     * @param filters filter per hash type, types without filter are not hashed and never reported
+     */
+    public RevocationChecker(@NotNull Map<HashType, PartialVariableHashFilter> filters) {
+        Map<HashType, PartialVariableHashFilter> copy = new EnumMap<>(HashType.class);
+        copy.putAll(filters);
+        this.signatureFilter = copy.get(HashType.SIGNATURE);
+        this.uciFilter = copy.get(HashType.UCI);
+        this.countryCodeUciFilter = copy.get(HashType.COUNTRYCODEUCI);
+    }
+
+    /**
+     * Hashes the certificate data and probes the filter of every configured hash type.
+     *
+     * @param uci             unique certificate identifier
+     * @param countryCode     issuing country code
+     * @param signature       array holding the signature, for ECDSA pass the range of its r value
+     * @param signatureOffset position of the signature
+     * @param signatureLength length of the signature
+     * @return {@link HashType#mask()} bits of the hash types whose filters might contain the certificate, 0 when
+     *     none does
+     */
+    public int check(@NotNull String uci, @NotNull String countryCode, byte @NotNull [] signature,
+                     int signatureOffset, int signatureLength) {
+        Buffers buffers = BUFFERS.get();
+        int result = 0;
+
+        if (signatureFilter != null) {
+            buffers.digest(signature, signatureOffset, signatureLength);
+            result |= signatureFilter.mightContain(buffers.hash) ? HashType.SIGNATURE.mask() : 0;
+        }
+        if (uciFilter != null) {
+            int length = buffers.encode(uci, 0);
+            buffers.digest(buffers.input, 0, length);
+            result |= uciFilter.mightContain(buffers.hash) ? HashType.UCI.mask() : 0;
+        }
+        if (countryCodeUciFilter != null) {
+            int length = buffers.encode(uci, buffers.encode(countryCode, 0));
+            buffers.digest(buffers.input, 0, length);
+            result |= countryCodeUciFilter.mightContain(buffers.hash) ? HashType.COUNTRYCODEUCI.mask() : 0;
+        }
+        return result;
+    }
+
+    /**
+     * Checks a certificate with the whole signature array, see {@link #check(String, String, byte[], int, int)}.
+     *
+     * @param uci         unique certificate identifier
+     * @param countryCode issuing country code
+     * @param signature   signature, for ECDSA its r value
+     * @return {@link HashType#mask()} bits of the hash types whose filters might contain the certificate
+     */
+    public int check(@NotNull String uci, @NotNull String countryCode, byte @NotNull [] signature) {
+        return check(uci, countryCode, signature, 0, signature.length);
+    }
+
+    /**
+     * Message digest and buffers of one thread.
+     */
+    private static final class Buffers {
+        private final MessageDigest messageDigest;
+        private final byte[] hash = new byte[DIGEST_LENGTH];
+        private byte[] input = new byte[64];
+
+        Buffers() {
+            try {
+                messageDigest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+
+        void digest(byte[] src, int offset, int length) {
+            messageDigest.update(src, offset, length);
+            try {
+                messageDigest.digest(hash, 0, DIGEST_LENGTH);
+            } catch (DigestException e) {
+                throw new IllegalStateException("SHA-256 digest cannot be written", e);
+            }
+        }
+
+        /**
+         * Writes the UTF-8 encoding of a string to the input buffer, unpaired surrogates are encoded as '?' like
+         * {@link String#getBytes(java.nio.charset.Charset)} does.
+         *
+         * @param value    string to encode
+         * @param position position in the input buffer
+         * @return position after the encoded string
+         */
+        int encode(String value, int position) {
+            int required = position + 3 * value.length();
+            if (required > input.length) {
+                input = Arrays.copyOf(input, Math.max(required, 2 * input.length));
+            }
+
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    input[position++] = (byte) c;
+                } else if (c < 0x800) {
+                    input[position++] = (byte) (0xC0 | c >> 6);
+                    input[position++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    input[position++] = (byte) (0xF0 | codePoint >> 18);
+                    input[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    input[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    input[position++] = (byte) (0x80 | codePoint & 0x3F);
+                } else if (Character.isSurrogate(c)) {
+                    input[position++] = '?';
+                } else {
+                    input[position++] = (byte) (0xE0 | c >> 12);
+                    input[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    input[position++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+            return position;
+        }
+    }
+}
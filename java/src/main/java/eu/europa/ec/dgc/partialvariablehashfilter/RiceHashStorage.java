@@ -0,0 +1,481 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Read only storage keeping the records Golomb-Rice coded, the payload of a version 2 filter.
+ * <p>
+ * The leading {@link #HIGH_BYTES} bytes of every record are read as a sign extended number, the sorted numbers are
+ * stored as gaps to their predecessor: the quotient gap &gt;&gt;&gt; k in unary, followed by the k low bits. The
+ * records are grouped into blocks of {@link #BLOCK_RECORDS}, each block starts with a number from the block index,
+ * so a lookup binary searches the index and decodes a single block. Bytes beyond the leading ones are uniformly
+ * distributed and stored uncompressed per record.
+ * <p>
+ * The payload is in big endian format:
+ * <pre>
+ * Pos   Field          Description
+ * 0-3   count          number of records
+ * 4     k              number of low bits stored per gap
+ * 5-6   block records  number of records per block
+ * 7-10  stream length  length of the bit stream in bytes, including 8 trailing zero bytes
+ * 11-*  block index    per block the leading number of its first record (8 bytes) and its bit position (8 bytes)
+ *       bit stream     coded gaps, a quotient of {@link #ESCAPE} ones is followed by the raw 64 bit gap instead
+ *       tails          remaining bytes of every record, in filter order
+ * </pre>
+ */
+final class RiceHashStorage extends HashStorage {
+    static final int PAYLOAD_HEADER_SIZE = 11;
+    private static final int HIGH_BYTES = Long.BYTES;
+    private static final int BLOCK_RECORDS = 128;
+    private static final int INDEX_ENTRY_SIZE = 2 * Long.BYTES;
+    private static final int ESCAPE = 32;
+    private static final int PADDING = Long.BYTES;
+
+    private final ByteBuffer data;
+    private final int count;
+    private final int riceBits;
+    private final int blockRecords;
+    private final int blocks;
+    private final int highBytes;
+    private final int tailBytes;
+    private final int indexStart;
+    private final long streamStart;
+    private final int tailStart;
+
+    /**
+     * @param payload    coded records from position to limit, the buffer must not be modified afterwards
+     * @param recordSize bytes per record
+     * @throws IllegalArgumentException when the payload is truncated or its header, block index or bit stream is
+     *                                  invalid
+     */
+    RiceHashStorage(ByteBuffer payload, int recordSize) throws IllegalArgumentException {
+        super(recordSize);
+        this.data = payload.slice().asReadOnlyBuffer();
+        if (data.remaining() < PAYLOAD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Compressed filter data ends within its header");
+        }
+
+        this.count = data.getInt(0);
+        this.riceBits = data.get(4);
+        this.blockRecords = data.getShort(5);
+        int streamLength = data.getInt(7);
+        if (count < 0 || riceBits < 0 || riceBits >= Long.SIZE || blockRecords <= 0 || streamLength < PADDING) {
+            throw new IllegalArgumentException("Compressed filter data has an invalid header");
+        }
+
+        this.blocks = (int) (((long) count + blockRecords - 1) / blockRecords);
+        this.highBytes = Math.min(recordSize, HIGH_BYTES);
+        this.tailBytes = recordSize - highBytes;
+        this.indexStart = PAYLOAD_HEADER_SIZE;
+        long tailStart = (long) indexStart + (long) blocks * INDEX_ENTRY_SIZE + streamLength;
+        if (tailStart + (long) count * tailBytes != data.remaining()) {
+            throw new IllegalArgumentException("Compressed filter data length does not match its header");
+        }
+        this.streamStart = 8L * (indexStart + blocks * INDEX_ENTRY_SIZE);
+        this.tailStart = (int) tailStart;
+        validate(streamStart + 8L * (streamLength - PADDING));
+    }
+
+    /**
+     * Decodes all blocks once, so that lookups only read bits within the payload. The leading numbers have to be
+     * sorted and every block has to start where the gaps of the previous block end.
+     *
+     * @param streamEnd bit position of the padding after the coded gaps
+     * @throws IllegalArgumentException when the block index or the bit stream is invalid
+     */
+    private void validate(long streamEnd) throws IllegalArgumentException {
+        long previous = Long.MIN_VALUE;
+        long position = streamStart;
+        try {
+            for (int block = 0; block < blocks; block++) {
+                long high = firstHigh(block);
+                if (high < previous || streamStart + bitPosition(block) != position) {
+                    throw new IllegalArgumentException("Compressed filter data has an invalid block index");
+                }
+
+                int records = Math.min(blockRecords, count - block * blockRecords);
+                for (int i = 1; i < records; i++) {
+                    long gap = gap(position);
+                    position = skipGap(position);
+                    // the gap must neither pass the padding nor the largest leading number
+                    if (position > streamEnd || Long.compareUnsigned(gap, Long.MAX_VALUE - high) > 0) {
+                        throw new IllegalArgumentException("Compressed filter data has an invalid bit stream");
+                    }
+                    high += gap;
+                }
+                previous = high;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Compressed filter data has an invalid bit stream", e);
+        }
+    }
+
+    /**
+     * Codes sorted records into a payload.
+     *
+     * @param sorted storage in filter order
+     * @return payload for {@link #RiceHashStorage(ByteBuffer, int)}
+     */
+    static byte[] encode(HashStorage sorted) {
+        int recordSize = sorted.recordSize;
+        int count = sorted.count();
+        int highBytes = Math.min(recordSize, HIGH_BYTES);
+        int tailBytes = recordSize - highBytes;
+        int riceBits = riceBits(sorted, highBytes);
+        int blocks = (count + BLOCK_RECORDS - 1) / BLOCK_RECORDS;
+
+        ByteBuffer index = ByteBuffer.allocate(blocks * INDEX_ENTRY_SIZE);
+        BitWriter stream = new BitWriter(count);
+        byte[] tails = new byte[Math.multiplyExact(count, tailBytes)];
+        RecordCursor cursor = new RecordCursor(sorted);
+        long previous = 0;
+
+        for (int i = 0; cursor.hasRecord(); i++, cursor.next()) {
+            long high = HashBytes.toLong(cursor.chunk(), cursor.offset(), highBytes);
+            if (i % BLOCK_RECORDS == 0) {
+                index.putLong(high).putLong(stream.bits);
+            } else {
+                stream.writeGap(high - previous, riceBits);
+            }
+            previous = high;
+            System.arraycopy(cursor.chunk(), cursor.offset() + highBytes, tails, i * tailBytes, tailBytes);
+        }
+        byte[] bitStream = stream.finish(PADDING);
+
+        ByteBuffer payload = ByteBuffer.allocate(PAYLOAD_HEADER_SIZE + index.capacity() + bitStream.length
+            + tails.length);
+        payload.putInt(count);
+        payload.put((byte) riceBits);
+        payload.putShort((short) BLOCK_RECORDS);
+        payload.putInt(bitStream.length);
+        payload.put(index.array());
+        payload.put(bitStream);
+        payload.put(tails);
+        return payload.array();
+    }
+
+    /**
+     * @return number of low bits for which the mean gap costs about two bits of unary quotient
+     */
+    private static int riceBits(HashStorage sorted, int highBytes) {
+        int count = sorted.count();
+        if (count < 2) {
+            return 0;
+        }
+
+        byte[] record = new byte[sorted.recordSize];
+        sorted.get(0, record, 0);
+        long first = HashBytes.toLong(record, 0, highBytes);
+        sorted.get(count - 1, record, 0);
+        long last = HashBytes.toLong(record, 0, highBytes);
+
+        long meanGap = Long.divideUnsigned(last - first, count - 1);
+        return meanGap == 0 ? 0 : Long.SIZE - 1 - Long.numberOfLeadingZeros(meanGap);
+    }
+
+    @Override
+    boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    boolean hasFastRankAccess() {
+        return false;
+    }
+
+    @Override
+    int count() {
+        return count;
+    }
+
+    @Override
+    void append(byte[] src, int offset, int records) {
+        throw new UnsupportedOperationException("Storage is read only");
+    }
+
+    @Override
+    void sort(ForkJoinPool pool) {
+        throw new UnsupportedOperationException("Storage is read only");
+    }
+
+    @Override
+    void deduplicate() {
+        throw new UnsupportedOperationException("Storage is read only");
+    }
+
+    @Override
+    void insert(byte[] src, int offset) {
+        throw new UnsupportedOperationException("Storage is read only");
+    }
+
+    @Override
+    boolean contains(byte[] key, int offset, int fromIndex, int toIndex) {
+        if (fromIndex >= toIndex) {
+            return false;
+        }
+
+        long keyHigh = HashBytes.toLong(key, offset, highBytes);
+        int block = floorBlock(keyHigh);
+        if (block < 0) {
+            return false;
+        }
+        // records sharing the leading bytes may start in an earlier block
+        while (tailBytes > 0 && block > 0 && firstHigh(block) == keyHigh) {
+            block--;
+        }
+
+        int index = block * blockRecords;
+        long high = firstHigh(block);
+        long position = streamStart + bitPosition(block);
+        while (true) {
+            int comparison = Long.compare(high, keyHigh);
+            if (comparison == 0 && tailBytes > 0) {
+                comparison = compareTail(index, key, offset);
+            }
+            if (comparison > 0) {
+                return false;
+            }
+            if (comparison == 0 && index >= fromIndex) {
+                return index < toIndex;
+            }
+
+            index++;
+            if (index == count) {
+                return false;
+            }
+            if (index % blockRecords == 0) {
+                block++;
+                high = firstHigh(block);
+                position = streamStart + bitPosition(block);
+            } else {
+                high += gap(position);
+                position = skipGap(position);
+            }
+        }
+    }
+
+    @Override
+    int compare(int index, byte[] key, int offset) {
+        int block = index / blockRecords;
+        long high = firstHigh(block);
+        long position = streamStart + bitPosition(block);
+        for (int i = block * blockRecords; i < index; i++) {
+            high += gap(position);
+            position = skipGap(position);
+        }
+
+        int comparison = Long.compare(high, HashBytes.toLong(key, offset, highBytes));
+        return comparison != 0 || tailBytes == 0 ? comparison : compareTail(index, key, offset);
+    }
+
+    @Override
+    void get(int index, byte[] dst, int offset) {
+        get(index, 1, dst, offset);
+    }
+
+    @Override
+    void get(int index, int records, byte[] dst, int offset) {
+        if (records <= 0) {
+            return;
+        }
+
+        int block = index / blockRecords;
+        long high = firstHigh(block);
+        long position = streamStart + bitPosition(block);
+        for (int i = block * blockRecords; i < index; i++) {
+            high += gap(position);
+            position = skipGap(position);
+        }
+
+        for (int i = 0; true; ) {
+            int target = offset + i * recordSize;
+            HashBytes.fromLong(high, dst, target, highBytes);
+            int tail = tailStart + (index + i) * tailBytes;
+            for (int j = 0; j < tailBytes; j++) {
+                dst[target + highBytes + j] = data.get(tail + j);
+            }
+
+            if (++i == records) {
+                return;
+            }
+            if ((index + i) % blockRecords == 0) {
+                block++;
+                high = firstHigh(block);
+                position = streamStart + bitPosition(block);
+            } else {
+                high += gap(position);
+                position = skipGap(position);
+            }
+        }
+    }
+
+    @Override
+    long memoryBytes() {
+        return data.capacity();
+    }
+
+    /**
+     * @return last block whose first record has leading bytes not greater than key, -1 when there is none
+     */
+    private int floorBlock(long keyHigh) {
+        int low = 0;
+        int high = blocks - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (firstHigh(middle) <= keyHigh) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    private long firstHigh(int block) {
+        return data.getLong(indexStart + block * INDEX_ENTRY_SIZE);
+    }
+
+    private long bitPosition(int block) {
+        return data.getLong(indexStart + block * INDEX_ENTRY_SIZE + Long.BYTES);
+    }
+
+    private int compareTail(int index, byte[] key, int offset) {
+        int tail = tailStart + index * tailBytes;
+        int result = 0;
+        for (int i = 0; i < tailBytes && result == 0; i++) {
+            result = Integer.compare(data.get(tail + i) & 0xFF, key[offset + highBytes + i] & 0xFF);
+        }
+        return result;
+    }
+
+    /**
+     * @return value of the gap coded at the bit position
+     */
+    private long gap(long position) {
+        int quotient = unary(position);
+        if (quotient == ESCAPE) {
+            return bits(position + ESCAPE, Long.SIZE);
+        }
+        return (long) quotient << riceBits | bits(position + quotient + 1, riceBits);
+    }
+
+    /**
+     * @return bit position after the gap coded at the bit position
+     */
+    private long skipGap(long position) {
+        int quotient = unary(position);
+        if (quotient == ESCAPE) {
+            return position + ESCAPE + Long.SIZE;
+        }
+        return position + quotient + 1 + riceBits;
+    }
+
+    /**
+     * @return number of leading one bits at the bit position, at most {@link #ESCAPE}
+     */
+    private int unary(long position) {
+        long word = data.getLong((int) (position >>> 3)) << (position & 7);
+        return Math.min(ESCAPE, Long.numberOfLeadingZeros(~word));
+    }
+
+    private long bits(long position, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        if (length > Integer.SIZE) {
+            return bits(position, length - Integer.SIZE) << Integer.SIZE
+                | bits(position + length - Integer.SIZE, Integer.SIZE);
+        }
+
+        long word = data.getLong((int) (position >>> 3)) << (position & 7);
+        return word >>> (Long.SIZE - length);
+    }
+
+    /**
+     * Collects bits most significant first.
+     */
+    private static final class BitWriter {
+        private byte[] bytes;
+        private int length;
+        private long pending;
+        private int pendingBits;
+        long bits;
+
+        BitWriter(int expectedGaps) {
+            this.bytes = new byte[Math.max(16, expectedGaps)];
+        }
+
+        void writeGap(long gap, int riceBits) {
+            long quotient = gap >>> riceBits;
+            if (quotient >= ESCAPE) {
+                write(-1L, ESCAPE);
+                write(gap >>> Integer.SIZE, Integer.SIZE);
+                write(gap, Integer.SIZE);
+                return;
+            }
+
+            // quotient ones and the terminating zero
+            write((1L << (quotient + 1)) - 2, (int) quotient + 1);
+            if (riceBits > Integer.SIZE) {
+                write(gap >>> Integer.SIZE, riceBits - Integer.SIZE);
+                write(gap, Integer.SIZE);
+            } else {
+                write(gap, riceBits);
+            }
+        }
+
+        /**
+         * @param value    value whose lowest bitCount bits are written
+         * @param bitCount number of bits, at most 32
+         */
+        void write(long value, int bitCount) {
+            if (bitCount == 0) {
+                return;
+            }
+
+            pending = pending << bitCount | (value & (-1L >>> (Long.SIZE - bitCount)));
+            pendingBits += bitCount;
+            bits += bitCount;
+            while (pendingBits >= Byte.SIZE) {
+                pendingBits -= Byte.SIZE;
+                if (length == this.bytes.length) {
+                    this.bytes = Arrays.copyOf(this.bytes, grow(this.bytes.length, this.bytes.length + 1));
+                }
+                this.bytes[this.length++] = (byte) (pending >>> pendingBits);
+            }
+        }
+
+        /**
+         * @return written bits, the last byte filled with zeros, followed by padding zero bytes
+         */
+        byte[] finish(int padding) {
+            byte[] result = Arrays.copyOf(bytes, length + (pendingBits > 0 ? 1 : 0) + padding);
+            if (pendingBits > 0) {
+                result[length] = (byte) (pending << (Byte.SIZE - pendingBits));
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+/**
+ * In-memory layout of the partial hashes of a loaded filter.
+ *
+ * @see LoadOptions#withLayout(StorageLayout)
+ */
+public enum StorageLayout {
+    /**
+     * Ascending order, searched by binary search. Filters on top of sorted buffers use the buffer without copying.
+     */
+    SORTED,
+    /**
+     * Eytzinger (breadth first) order of an implicit binary search tree. The top levels of the tree share few cache
+     * lines, so lookups in large filters cause fewer cache misses than a binary search. The partial hashes are always
+     * copied to the heap, writing the filter restores the sorted order.
+     */
+    EYTZINGER
+}
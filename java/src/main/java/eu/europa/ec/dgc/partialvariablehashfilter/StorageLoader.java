@@ -0,0 +1,164 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Collects the partial hashes of a filter while it is loaded and builds the lookup structures requested by the
+ * {@link LoadOptions} in the same pass.
+ */
+final class StorageLoader {
+    private final int recordSize;
+    private final StorageLayout layout;
+    private final boolean prefilter;
+    private final boolean offHeap;
+    private final ForkJoinPool pool;
+    private final PrefixIndex.Counter counter;
+    private HashStorage storage;
+    private boolean sorted;
+    private PrefixIndex prefixIndex;
+    private BloomPrefilter bloomPrefilter;
+
+    /**
+     * @param recordSize    bytes per record
+     * @param expectedCount expected number of records, used to size the storage
+     * @param options       options of the load
+     */
+    StorageLoader(int recordSize, int expectedCount, LoadOptions options) {
+        this(recordSize, expectedCount, options, HashStorage.create(recordSize, expectedCount));
+    }
+
+    /**
+     * Starts from records that are already sorted, e.g. the result of a merge.
+     *
+     * @param sorted  storage in filter order
+     * @param options options for the lookup structures and layout
+     */
+    StorageLoader(HashStorage sorted, LoadOptions options) {
+        this(sorted.recordSize, sorted.count(), options, sorted);
+        this.sorted = true;
+
+        if (counter != null) {
+            RecordCursor cursor = new RecordCursor(sorted);
+            while (cursor.hasRecord()) {
+                counter.count(cursor.chunk(), cursor.offset(), 1);
+                cursor.next();
+            }
+        }
+    }
+
+    private StorageLoader(int recordSize, int expectedCount, LoadOptions options, HashStorage storage) {
+        this.recordSize = recordSize;
+        this.layout = options.getLayout();
+        this.prefilter = options.isPrefilter();
+        this.offHeap = options.isOffHeap();
+        this.pool = options.getParallelLoadPool();
+        this.counter = options.isPrefixIndex() && layout == StorageLayout.SORTED
+            ? new PrefixIndex.Counter(recordSize, expectedCount) : null;
+        this.storage = storage;
+    }
+
+    /**
+     * Appends records in any order.
+     */
+    void append(byte[] src, int offset, int records) {
+        if (pool != null && records >= HashStorage.PARALLEL_THRESHOLD) {
+            storage.append(src, offset, records, pool);
+        } else {
+            storage.append(src, offset, records);
+        }
+        if (counter != null) {
+            counter.count(src, offset, records);
+        }
+    }
+
+    /**
+     * Uses sorted records in a buffer without copying them, only for the {@link StorageLayout#SORTED} layout.
+     *
+     * @param records records from position to limit
+     * @return false when the records are not sorted, nothing is used then; {@link #finish()} has to be called in
+     *     both cases
+     */
+    boolean wrapIfSorted(ByteBuffer records) {
+        if (layout != StorageLayout.SORTED) {
+            return false;
+        }
+
+        int start = records.position();
+        int count = records.remaining() / recordSize;
+
+        for (int i = 0; i < count; i++) {
+            int offset = start + i * recordSize;
+            if (i > 0 && HashBytes.compare(records, offset - recordSize, records, offset, recordSize) > 0) {
+                if (counter != null) {
+                    counter.reset();
+                }
+                return false;
+            }
+            if (counter != null) {
+                counter.count(records, offset, 1);
+            }
+        }
+
+        storage = new BufferHashStorage(records, recordSize);
+        sorted = true;
+        return true;
+    }
+
+    int count() {
+        return storage.count();
+    }
+
+    /**
+     * Sorts the appended records and builds the lookup structures and layout.
+     */
+    void finish() {
+        if (!sorted) {
+            storage.sort(pool != null && storage.count() >= HashStorage.PARALLEL_THRESHOLD ? pool : null);
+            sorted = true;
+        }
+        if (counter != null) {
+            prefixIndex = counter.build(storage.count());
+        }
+        if (layout == StorageLayout.EYTZINGER) {
+            storage = EytzingerHashStorage.of(storage);
+        } else if (offHeap && !storage.isReadOnly()) {
+            storage = BufferHashStorage.offHeap(storage);
+        }
+        if (prefilter) {
+            bloomPrefilter = BloomPrefilter.of(storage);
+        }
+    }
+
+    HashStorage storage() {
+        return storage;
+    }
+
+    PrefixIndex prefixIndex() {
+        return prefixIndex;
+    }
+
+    BloomPrefilter prefilter() {
+        return bloomPrefilter;
+    }
+}
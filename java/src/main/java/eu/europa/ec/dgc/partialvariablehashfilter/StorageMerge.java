@@ -0,0 +1,224 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Linear merges of sorted storages.
+ */
+final class StorageMerge {
+    private static final int COPY_CHUNK_RECORDS = 4096;
+    private static final int MIN_PARTITION_RECORDS = 1 << 14;
+
+    private StorageMerge() {
+    }
+
+    /**
+     * Set operations of {@link #combine}, records are compared by their first width bytes.
+     */
+    enum SetOperation {
+        UNION(true, true, true),
+        INTERSECTION(false, false, true),
+        DIFFERENCE(true, false, false);
+
+        private final boolean keepFirstOnly;
+        private final boolean keepSecondOnly;
+        private final boolean keepBoth;
+
+        SetOperation(boolean keepFirstOnly, boolean keepSecondOnly, boolean keepBoth) {
+            this.keepFirstOnly = keepFirstOnly;
+            this.keepSecondOnly = keepSecondOnly;
+            this.keepBoth = keepBoth;
+        }
+    }
+
+    /**
+     * Merges all records of both storages, records contained in both are kept twice like {@link HashStorage#insert}
+     * would.
+     *
+     * @param first  sorted storage
+     * @param second sorted storage with the same record size
+     * @return new sorted storage holding the records of both
+     */
+    static HashStorage merge(HashStorage first, HashStorage second) {
+        int recordSize = first.recordSize;
+        HashStorage result = HashStorage.create(recordSize, first.count() + second.count());
+        RecordCursor left = new RecordCursor(first);
+        RecordCursor right = new RecordCursor(second);
+
+        while (left.hasRecord() && right.hasRecord()) {
+            if (HashBytes.compare(left.chunk(), left.offset(), right.chunk(), right.offset(), recordSize) <= 0) {
+                result.append(left.chunk(), left.offset(), 1);
+                left.next();
+            } else {
+                result.append(right.chunk(), right.offset(), 1);
+                right.next();
+            }
+        }
+        appendRemaining(left, result);
+        appendRemaining(right, result);
+        return result;
+    }
+
+    /**
+     * Removes the records of second from first, a record contained twice in first is removed twice only when it is
+     * contained twice in second.
+     *
+     * @param first  sorted storage
+     * @param second sorted storage with the same record size
+     * @param strict true to fail when second contains a record that is not in first
+     * @return new sorted storage holding the remaining records of first
+     * @throws IllegalArgumentException when strict and a record of second is missing in first
+     */
+    static HashStorage difference(HashStorage first, HashStorage second, boolean strict) {
+        int recordSize = first.recordSize;
+        HashStorage result = HashStorage.create(recordSize, first.count());
+        RecordCursor left = new RecordCursor(first);
+        RecordCursor right = new RecordCursor(second);
+
+        while (left.hasRecord() && right.hasRecord()) {
+            int comparison = HashBytes.compare(left.chunk(), left.offset(), right.chunk(), right.offset(), recordSize);
+            if (comparison < 0) {
+                result.append(left.chunk(), left.offset(), 1);
+                left.next();
+            } else if (comparison == 0) {
+                left.next();
+                right.next();
+            } else if (strict) {
+                throw new IllegalArgumentException("Partial hash to remove is not contained");
+            } else {
+                right.next();
+            }
+        }
+        if (strict && right.hasRecord()) {
+            throw new IllegalArgumentException("Partial hash to remove is not contained");
+        }
+        appendRemaining(left, result);
+        return result;
+    }
+
+    private static void appendRemaining(RecordCursor cursor, HashStorage result) {
+        while (cursor.hasRecord()) {
+            result.append(cursor.chunk(), cursor.offset(), 1);
+            cursor.next();
+        }
+    }
+
+    /**
+     * Combines two sorted storages into a set of records of the given width. Records are truncated to their first
+     * width bytes, which keeps them sorted, and every truncated record is contained once in the result. Large inputs
+     * are split into ranges of equal leading bytes that are combined concurrently.
+     *
+     * @param first     sorted storage
+     * @param second    sorted storage
+     * @param width     record size of the result, at most the record size of both storages
+     * @param operation operation to apply
+     * @param pool      pool to combine large inputs in, null to combine in the calling thread
+     * @return new sorted storage without duplicates
+     */
+    static HashStorage combine(HashStorage first, HashStorage second, int width, SetOperation operation,
+                               @Nullable ForkJoinPool pool) {
+        long total = (long) first.count() + second.count();
+        int partitions = (int) Math.min(total / MIN_PARTITION_RECORDS, pool == null ? 1 : pool.getParallelism() * 4L);
+        if (pool == null || total < HashStorage.PARALLEL_THRESHOLD || partitions < 2
+            || !first.hasFastRankAccess() || !second.hasFastRankAccess()) {
+            return combine(first, 0, first.count(), second, 0, second.count(), width, operation);
+        }
+
+        // split at the leading bytes of evenly spaced records, equal truncated records end up in one range
+        HashStorage larger = first.count() >= second.count() ? first : second;
+        int[] firstBounds = new int[partitions + 1];
+        int[] secondBounds = new int[partitions + 1];
+        byte[] record = new byte[larger.recordSize];
+        byte[] key = new byte[Math.max(first.recordSize, second.recordSize)];
+        for (int i = 1; i < partitions; i++) {
+            larger.get((int) ((long) larger.count() * i / partitions), record, 0);
+            // padding with zero bytes gives the smallest record with the leading bytes
+            System.arraycopy(record, 0, key, 0, width);
+            firstBounds[i] = first.lowerBound(key, 0, firstBounds[i - 1]);
+            secondBounds[i] = second.lowerBound(key, 0, secondBounds[i - 1]);
+        }
+        firstBounds[partitions] = first.count();
+        secondBounds[partitions] = second.count();
+
+        HashStorage[] parts = new HashStorage[partitions];
+        pool.invoke(ForkJoinTask.adapt(() -> IntStream.range(0, partitions).parallel().forEach(i ->
+            parts[i] = combine(first, firstBounds[i], firstBounds[i + 1], second, secondBounds[i],
+                secondBounds[i + 1], width, operation))));
+
+        int count = 0;
+        for (HashStorage part : parts) {
+            count += part.count();
+        }
+        HashStorage result = HashStorage.create(width, count);
+        byte[] chunk = new byte[COPY_CHUNK_RECORDS * width];
+        for (HashStorage part : parts) {
+            for (int index = 0; index < part.count(); index += COPY_CHUNK_RECORDS) {
+                int records = Math.min(COPY_CHUNK_RECORDS, part.count() - index);
+                part.get(index, records, chunk, 0);
+                result.append(chunk, 0, records);
+            }
+        }
+        return result;
+    }
+
+    private static HashStorage combine(HashStorage first, int firstFrom, int firstTo, HashStorage second,
+                                       int secondFrom, int secondTo, int width, SetOperation operation) {
+        HashStorage result = HashStorage.create(width,
+            operation == SetOperation.UNION ? firstTo - firstFrom + secondTo - secondFrom : firstTo - firstFrom);
+        RecordCursor left = new RecordCursor(first, firstFrom, firstTo);
+        RecordCursor right = new RecordCursor(second, secondFrom, secondTo);
+        byte[] last = new byte[width];
+        boolean hasLast = false;
+
+        while (left.hasRecord() || right.hasRecord()) {
+            int comparison = !left.hasRecord() ? 1 : !right.hasRecord() ? -1
+                : HashBytes.compare(left.chunk(), left.offset(), right.chunk(), right.offset(), width);
+            RecordCursor emitted;
+            if (comparison < 0) {
+                emitted = operation.keepFirstOnly ? left : null;
+            } else if (comparison > 0) {
+                emitted = operation.keepSecondOnly ? right : null;
+            } else {
+                emitted = operation.keepBoth ? left : null;
+            }
+
+            if (emitted != null
+                && (!hasLast || HashBytes.compare(emitted.chunk(), emitted.offset(), last, 0, width) != 0)) {
+                result.append(emitted.chunk(), emitted.offset(), 1);
+                System.arraycopy(emitted.chunk(), emitted.offset(), last, 0, width);
+                hasLast = true;
+            }
+
+            // on equal records only the first cursor moves, so that all of its duplicates meet the second record
+            if (comparison <= 0) {
+                left.next();
+            } else {
+                right.next();
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.io.IOException;
+
+/**
+ * Signals that serialized filter data ends within a partial hash record.
+ */
+public class TruncatedFilterException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int recordsRead;
+    private final int trailingBytes;
+    private final byte size;
+
+    /**
+     * @param recordsRead   complete partial hashes before the truncated one
+     * @param trailingBytes bytes of the truncated partial hash
+     * @param size          size of the partial hashes in the filter
+     */
+    public TruncatedFilterException(int recordsRead, int trailingBytes, byte size) {
+        super("Filter data ends within a partial hash: " + trailingBytes + " of " + size
+            + " bytes present after " + recordsRead + " complete partial hashes");
+        this.recordsRead = recordsRead;
+        this.trailingBytes = trailingBytes;
+        this.size = size;
+    }
+
+    public int getRecordsRead() {
+        return recordsRead;
+    }
+
+    public int getTrailingBytes() {
+        return trailingBytes;
+    }
+
+    public byte getSize() {
+        return size;
+    }
+}
@@ -54,4 +54,27 @@ class BinarySearchTest {
         boolean result = new BinarySearch().binarySearch(intArray, 0, toIndex, new BigInteger(new byte[]{0, 6}));
         assert !result;
     }
-}
\ No newline at end of file
+
+    @Test
+    public void searchLongArrayTest() {
+        long[] array = new long[]{-40, -2, 7, 9, 300};
+
+        assert BinarySearch.binarySearch(array, 0, array.length, -40) == 0;
+        assert BinarySearch.binarySearch(array, 0, array.length, 300) == 4;
+        assert BinarySearch.binarySearch(array, 0, array.length, 8) == -4;
+        assert BinarySearch.binarySearch(array, 0, array.length, 301) == -6;
+        assert BinarySearch.binarySearch(array, 1, 3, 9) == -4;
+    }
+
+    @Test
+    public void searchRecordsTest() {
+        byte[] records = new byte[]{-128, 0, -1, -1, 1, 2, 3, -6, 8, 2};
+        int count = records.length / 2;
+
+        assert BinarySearch.binarySearch(records, 2, 0, count, new byte[]{-128, 0}, 0) == 0;
+        assert BinarySearch.binarySearch(records, 2, 0, count, new byte[]{9, 3, -6}, 1) == 3;
+        assert BinarySearch.binarySearch(records, 2, 0, count, new byte[]{8, 2, 7}, 0) == 4;
+        assert BinarySearch.binarySearch(records, 2, 0, count, new byte[]{3, 6}, 0) == -4;
+        assert BinarySearch.binarySearch(records, 2, 0, count, new byte[]{-1, 0}, 0) == -2;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+public class ConcurrentPartialVariableHashFilterTest {
+
+    @Test
+    public void mergeOnThresholdTest() throws IOException {
+        byte[] hash1 = new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+        byte[] hash2 = new byte[]{6, 7, 8, 9, 10, 11, 12};
+        byte[] hash3 = new byte[]{-6, 7, 8, 9, 10, 11, 12};
+        PartialVariableHashFilter expected = new PartialVariableHashFilter((byte) 1, PartitionOffset.POINT, 10, 0.000001F);
+        expected.add(hash1);
+        expected.add(hash2);
+        expected.add(hash3);
+
+        ConcurrentPartialVariableHashFilter filter = new ConcurrentPartialVariableHashFilter(
+            new PartialVariableHashFilter((byte) 1, PartitionOffset.POINT, 10, 0.000001F), 2, Duration.ofHours(1));
+        filter.add(hash2);
+
+        assert !filter.mightContain(hash2);
+        assert filter.getPendingCount() == 1;
+
+        filter.add(hash3);
+        assert filter.mightContain(hash2);
+        assert filter.mightContain(hash3);
+        assert filter.getPendingCount() == 0;
+
+        filter.add(hash1);
+        assert !filter.mightContain(hash1);
+        filter.flush();
+        assert filter.mightContain(hash1);
+        assert filter.getElementsCount() == 3;
+        assert Arrays.equals(expected.writeTo(), filter.snapshot().writeTo());
+    }
+
+    @Test
+    public void mergeOnDelayTest() throws InterruptedException {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            byte[] hash = new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+            ConcurrentPartialVariableHashFilter filter = new ConcurrentPartialVariableHashFilter(
+                new PartialVariableHashFilter((byte) 1, PartitionOffset.POINT, 10, 0.000001F), 100,
+                Duration.ofMillis(10), LoadOptions.defaults().withPrefilter(true), scheduler);
+            filter.add(hash);
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!filter.mightContain(hash) && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assert filter.mightContain(hash);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void concurrentReadersSeeMergedHashesTest() throws Exception {
+        int numberOfElements = 20000;
+        byte[][] hashes = new byte[numberOfElements][16];
+        Random random = new Random(23);
+        for (byte[] hash : hashes) {
+            random.nextBytes(hash);
+        }
+        ConcurrentPartialVariableHashFilter filter = new ConcurrentPartialVariableHashFilter(
+            new PartialVariableHashFilter((byte) 8, PartitionOffset.POINT, numberOfElements, 0.000001F), 500,
+            Duration.ofHours(1));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        AtomicBoolean writing = new AtomicBoolean(true);
+
+        try {
+            Future<?>[] readers = new Future<?>[3];
+            for (int r = 0; r < readers.length; r++) {
+                readers[r] = executor.submit(() -> {
+                    while (writing.get()) {
+                        // hashes are merged in the order they were added
+                        int visible = filter.getElementsCount();
+                        for (int i = 0; i < visible; i++) {
+                            assert filter.mightContain(hashes[i]);
+                        }
+                    }
+                });
+            }
+
+            for (byte[] hash : hashes) {
+                filter.add(hash);
+            }
+            filter.flush();
+            writing.set(false);
+            for (Future<?> reader : readers) {
+                reader.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assert filter.getElementsCount() == numberOfElements;
+    }
+
+    @Test
+    public void snapshotPrefixIndexTest() {
+        Random random = new Random(31);
+        PartialVariableHashFilter.Builder builder = new PartialVariableHashFilter.Builder((byte) 4,
+            PartitionOffset.POINT, 20000, 0.001F);
+        for (int i = 0; i < 10000; i++) {
+            byte[] hash = new byte[16];
+            random.nextBytes(hash);
+            builder.add(hash);
+        }
+        ConcurrentPartialVariableHashFilter filter = new ConcurrentPartialVariableHashFilter(builder.build(), 10,
+            Duration.ofHours(1), LoadOptions.defaults().withPrefixIndex(true), null);
+        assert filter.snapshot().getPrefixIndexBytes() > 0;
+
+        byte[] hash = new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+        filter.add(hash);
+        filter.flush();
+        assert filter.snapshot().getPrefixIndexBytes() > 0;
+        assert filter.mightContain(hash);
+    }
+
+    @Test
+    public void offHeapSnapshotsReleasedTest() throws Exception {
+        int numberOfElements = 5000;
+        byte[][] hashes = new byte[numberOfElements][16];
+        Random random = new Random(29);
+        for (byte[] hash : hashes) {
+            random.nextBytes(hash);
+        }
+        ConcurrentPartialVariableHashFilter filter = new ConcurrentPartialVariableHashFilter(
+            new PartialVariableHashFilter((byte) 8, PartitionOffset.POINT, numberOfElements, 0.000001F), 100,
+            Duration.ofHours(1), LoadOptions.defaults().withOffHeap(true), null);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        AtomicBoolean writing = new AtomicBoolean(true);
+
+        try {
+            Future<?>[] readers = new Future<?>[3];
+            for (int r = 0; r < readers.length; r++) {
+                readers[r] = executor.submit(() -> {
+                    while (writing.get()) {
+                        int visible = filter.getElementsCount();
+                        for (int i = 0; i < visible; i++) {
+                            assert filter.mightContain(hashes[i]);
+                        }
+                        assert filter.mightContainAll(Arrays.copyOf(hashes, visible)).length == visible;
+                    }
+                });
+            }
+
+            PartialVariableHashFilter first = filter.snapshot();
+            for (byte[] hash : hashes) {
+                filter.add(hash);
+            }
+            filter.flush();
+            writing.set(false);
+            for (Future<?> reader : readers) {
+                reader.get();
+            }
+            assert first.getMemoryBytes() == 0;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assert filter.getElementsCount() == numberOfElements;
+        assert filter.snapshot().getMemoryBytes() > 0;
+        assert filter.getPendingCount() == 0;
+    }
+
+    @Test
+    public void sharedSnapshotNotClosedTest() {
+        byte[] data = new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 0, 2, 2, 1, 2, 3, 4};
+        PartialVariableHashFilter shared = new PartialVariableHashFilter(ByteBuffer.wrap(data));
+        ConcurrentPartialVariableHashFilter filter = new ConcurrentPartialVariableHashFilter(shared, 1,
+            Duration.ofHours(1));
+        filter.add(new byte[]{5, 6});
+
+        assert filter.mightContain(new byte[]{5, 6});
+        assert shared.mightContain(new byte[]{1, 2});
+    }
+}
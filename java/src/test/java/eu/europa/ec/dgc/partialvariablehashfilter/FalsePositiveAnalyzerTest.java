@@ -0,0 +1,111 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class FalsePositiveAnalyzerTest {
+
+    @Test
+    public void analyzeTest() {
+        Random random = new Random(59);
+        List<byte[]> hashes = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            hashes.add(hash);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            FalsePositiveAnalyzer analyzer = new FalsePositiveAnalyzer(PartitionOffset.POINT, (byte) 6)
+                .addAll(hashes).pool(pool);
+            FalsePositiveAnalyzer.Report report = analyzer.analyze(0.01f);
+            assert report.getElements() == 100000;
+            assert report.getResults().size() == 6;
+            // about 1 - e^(-100000 / 65536) at 2 bytes and 100000 / 2^24 at 3 bytes
+            assert Math.abs(report.getResult((byte) 2).getRate() - 0.78) < 0.02;
+            assert Math.abs(report.getResult((byte) 3).getRate() - 0.006) < 0.002;
+            assert report.getResult((byte) 1).getRate() == 1;
+            assert report.getRecommendedSize() == 3;
+            assert report.getResult((byte) 3).getDistinctHashes() > 99000;
+            assert report.getResult((byte) 1).getDistinctHashes() == 256;
+            assert report.getResult((byte) 6).getSerializedBytes() == 600000;
+
+            FalsePositiveAnalyzer.Report same = new FalsePositiveAnalyzer(PartitionOffset.POINT, (byte) 6)
+                .addAll(hashes).analyze(0.01f);
+            assert same.getResult((byte) 3).getFalsePositives() == report.getResult((byte) 3).getFalsePositives();
+
+            PartialVariableHashFilter filter = analyzer.build(0.01f);
+            assert filter.getSize() == 3;
+            assert filter.getElementsCount() == report.getResult((byte) 3).getDistinctHashes();
+            for (byte[] hash : hashes) {
+                assert filter.mightContain(hash);
+            }
+            Assertions.assertThrows(IllegalStateException.class, () -> analyzer.probes(100000).build(1e-9f));
+
+            // each of the 256 partitions holds about 390 hashes, sizes count the bytes after the partition byte
+            FalsePositiveAnalyzer.Report vector = new FalsePositiveAnalyzer(PartitionOffset.VECTOR, (byte) 3)
+                .addAll(hashes).probes(100000).analyze(0.01f);
+            assert vector.getResults().size() == 3;
+            assert Math.abs(vector.getResult((byte) 1).getRate() - 0.78) < 0.02;
+            assert Math.abs(vector.getResult((byte) 2).getRate() - 0.006) < 0.002;
+            assert vector.getRecommendedSize() == 2;
+            assert vector.getResult((byte) 3).getDistinctHashes() > 99000;
+
+            // the filter of one partition holds the bytes after the partition byte and can be registered
+            List<byte[]> partition = new ArrayList<>();
+            for (byte[] hash : hashes) {
+                if (hash[0] == 7) {
+                    partition.add(hash);
+                }
+            }
+            PartialVariableHashFilter partitionFilter = new FalsePositiveAnalyzer(PartitionOffset.VECTOR, (byte) 3)
+                .addAll(partition).build((byte) 2, 0.01f);
+            assert partitionFilter.getSize() == 2;
+            FilterRegistry registry = new FilterRegistry();
+            registry.put("kid", PartitionOffset.VECTOR, 7, partitionFilter);
+            for (byte[] hash : partition) {
+                assert registry.mightContain("kid", hash);
+            }
+
+            // hashes of all partitions stay sorted and deduplicated without their partition bytes
+            PartialVariableHashFilter merged = new FalsePositiveAnalyzer(PartitionOffset.VECTOR, (byte) 3)
+                .addAll(hashes).build((byte) 1, 0.01f);
+            assert merged.getElementsCount() == 256;
+        } finally {
+            pool.shutdown();
+        }
+
+        Assertions.assertThrows(IllegalArgumentException.class,
+            () -> new FalsePositiveAnalyzer(PartitionOffset.COORDINATE, (byte) 0));
+        Assertions.assertThrows(IllegalArgumentException.class,
+            () -> new FalsePositiveAnalyzer(PartitionOffset.COORDINATE, (byte) 2).add(new byte[3]));
+        Assertions.assertThrows(IllegalArgumentException.class,
+            () -> new FalsePositiveAnalyzer(PartitionOffset.POINT, (byte) 4).add(new byte[3]));
+        assert new FalsePositiveAnalyzer(PartitionOffset.POINT, (byte) 4).analyze(0.01f).getRecommendedSize() == 1;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class FilterRegistryTest {
+
+    @Test
+    public void routingTest() throws IOException {
+        Random random = new Random(43);
+        byte[][] hashes = new byte[2000][32];
+        List<List<byte[]>> partitions = new ArrayList<>();
+        for (int i = 0; i < 256; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        List<byte[]> point = new ArrayList<>();
+        for (byte[] hash : hashes) {
+            random.nextBytes(hash);
+            // partition filters hold the bytes after the partition bytes
+            partitions.get(hash[0] & 0xFF).add(Arrays.copyOfRange(hash, 1, hash.length));
+            if ((hash[0] & 0xFF) == 7) {
+                point.add(hash);
+            }
+        }
+
+        // all partitions of the vector kid in one shared buffer
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        int[] positions = new int[257];
+        for (int i = 0; i < 256; i++) {
+            positions[i] = serialized.size();
+            new PartialVariableHashFilter.Builder((byte) 4, PartitionOffset.VECTOR, 20, 0.001F)
+                .addAll(partitions.get(i)).build().writeTo(serialized);
+        }
+        positions[256] = serialized.size();
+        ByteBuffer shared = ByteBuffer.wrap(serialized.toByteArray());
+
+        FilterRegistry registry = new FilterRegistry();
+        for (int i = 0; i < 256; i++) {
+            registry.put("vector", PartitionOffset.VECTOR, i, shared, positions[i], positions[i + 1] - positions[i],
+                LoadOptions.defaults());
+        }
+        registry.put("point", PartitionOffset.POINT, 0, new PartialVariableHashFilter.Builder((byte) 4,
+            PartitionOffset.POINT, 2000, 0.001F).addAll(point).build());
+
+        for (byte[] hash : hashes) {
+            assert registry.mightContain("vector", hash);
+            assert registry.mightContain("point", hash) == ((hash[0] & 0xFF) == 7);
+            assert !registry.mightContain("unknown", hash);
+        }
+        byte[] absent = new byte[32];
+        random.nextBytes(absent);
+        assert !registry.mightContain("vector", absent);
+        assert !registry.mightContain("vector", new byte[0]);
+
+        assert registry.getFilterCount() == 257;
+        assert registry.getElementsCount() == 2000 + point.size();
+        assert registry.getMemoryBytes() >= 2000 * 4;
+        assert registry.getKids().size() == 2;
+
+        PartialVariableHashFilter empty = new PartialVariableHashFilter((byte) 4, PartitionOffset.VECTOR, 20, 0.001F);
+        byte[] hash = hashes[0];
+        PartialVariableHashFilter replaced = registry.put("vector", PartitionOffset.VECTOR, hash[0] & 0xFF, empty);
+        assert replaced != null && replaced.mightContain(Arrays.copyOfRange(hash, 1, hash.length));
+        assert !registry.mightContain("vector", hash);
+        assert registry.get("vector", hash[0] & 0xFF) == empty;
+        assert registry.remove("vector", hash[0] & 0xFF) == empty;
+        assert registry.getFilterCount() == 256;
+
+        Assertions.assertThrows(IllegalArgumentException.class,
+            () -> registry.put("vector", PartitionOffset.COORDINATE, 0, empty));
+        Assertions.assertThrows(IllegalArgumentException.class,
+            () -> registry.put("vector", PartitionOffset.VECTOR, 256, empty));
+        assert registry.removeKid("vector");
+        PartialVariableHashFilter coordinate = new PartialVariableHashFilter((byte) 4, PartitionOffset.COORDINATE, 20,
+            0.001F);
+        coordinate.add(Arrays.copyOfRange(hash, 2, hash.length));
+        registry.put("vector", PartitionOffset.COORDINATE, (hash[0] & 0xFF) << 8 | (hash[1] & 0xFF), coordinate);
+        assert registry.mightContain("vector", hash);
+    }
+
+    @Test
+    public void partitionBytesNotStoredTest() {
+        byte[] hash = new byte[]{7, 1, 2, 3, 4, 5, 6, 7};
+        FilterRegistry registry = new FilterRegistry();
+
+        PartialVariableHashFilter stripped = new PartialVariableHashFilter((byte) 3, PartitionOffset.VECTOR, 10,
+            0.001F);
+        stripped.add(Arrays.copyOfRange(hash, 1, hash.length));
+        registry.put("kid", PartitionOffset.VECTOR, 7, stripped);
+        assert registry.mightContain("kid", hash);
+        assert !registry.mightContain("kid", new byte[]{7, 2, 2, 3, 4, 5, 6, 7});
+        assert !registry.mightContain("kid", new byte[]{7, 1, 2});
+
+        // a filter holding the whole hash does not match, its leading bytes differ from the bytes after the partition
+        PartialVariableHashFilter whole = new PartialVariableHashFilter((byte) 3, PartitionOffset.VECTOR, 10, 0.001F);
+        whole.add(hash);
+        registry.put("kid", PartitionOffset.VECTOR, 7, whole);
+        assert !registry.mightContain("kid", hash);
+    }
+
+    @Test
+    public void concurrentPutAndRemoveKidTest() throws Exception {
+        FilterRegistry registry = new FilterRegistry();
+        PartialVariableHashFilter filter = new PartialVariableHashFilter((byte) 3, PartitionOffset.VECTOR, 10, 0.001F);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int round = 0; round < 2000; round++) {
+                int partition = round % 256;
+                CountDownLatch start = new CountDownLatch(1);
+                Future<?> remove = executor.submit(() -> {
+                    start.await();
+                    return registry.removeKid("kid");
+                });
+                Future<?> put = executor.submit(() -> {
+                    start.await();
+                    return registry.put("kid", PartitionOffset.VECTOR, partition, filter);
+                });
+                start.countDown();
+                remove.get();
+                put.get();
+
+                // either the put followed the removal or the removal took the put filter with it
+                assert registry.get("kid", partition) == filter || !registry.getKids().contains("kid");
+                registry.removeKid("kid");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
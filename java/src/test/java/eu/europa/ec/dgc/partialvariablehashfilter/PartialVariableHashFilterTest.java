@@ -23,9 +23,34 @@
 package  eu.europa.ec.dgc.partialvariablehashfilter;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.ObjectName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Assertions;
 
@@ -219,4 +244,847 @@ public class PartialVariableHashFilterTest {
 
 
     }
+
+    @Test
+    public void negativeHashesRoundTripTest() throws IOException {
+        byte[] byteArray = new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 0, 3, 2, 5, 6, -1, -1, -128, 0}; // length = 2
+
+        PartialVariableHashFilter filter = new PartialVariableHashFilter(byteArray);
+
+        assert filter.getElementsCount() == 3;
+        assert filter.mightContain(new byte[]{-1, -1});
+        assert !filter.mightContain(new byte[]{-1, 0});
+        assert filter.getArray()[0].equals(BigInteger.valueOf(-32768));
+        assert filter.getArray()[1].equals(BigInteger.valueOf(-1));
+        assert Arrays.equals(new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 0, 3, 2, -128, 0, -1, -1, 5, 6}, filter.writeTo());
+    }
+
+    @Test
+    public void longHashesRoundTripTest() throws IOException {
+        byte[] header = new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 0, 3, 10};
+        byte[] hash1 = new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+        byte[] hash2 = new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, -10};
+        byte[] hash3 = new byte[]{-1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.write(header);
+        outputStream.write(hash2);
+        outputStream.write(hash1);
+        outputStream.write(hash3);
+
+        PartialVariableHashFilter filter = new PartialVariableHashFilter(outputStream.toByteArray());
+
+        assert filter.getElementsCount() == 3;
+        assert filter.mightContain(hash1);
+        assert filter.mightContain(hash2);
+        assert filter.mightContain(hash3);
+        assert !filter.mightContain(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 11});
+
+        outputStream.reset();
+        outputStream.write(header);
+        outputStream.write(hash3);
+        outputStream.write(hash1);
+        outputStream.write(hash2);
+        assert Arrays.equals(outputStream.toByteArray(), filter.writeTo());
+    }
+
+    @Test
+    public void builderWritesSameBytesAsAddTest() throws IOException {
+        int numberOfElements = 100000;
+        Random random = new Random(7);
+        List<byte[]> hashes = new ArrayList<>();
+        for (int i = 0; i < numberOfElements; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            hashes.add(hash);
+        }
+
+        PartialVariableHashFilter filter = new PartialVariableHashFilter((byte) 1, PartitionOffset.POINT, numberOfElements, 0.000001F);
+        for (byte[] hash : hashes) {
+            filter.add(hash);
+        }
+        PartialVariableHashFilter built = new PartialVariableHashFilter.Builder((byte) 1, PartitionOffset.POINT, numberOfElements, 0.000001F)
+            .addAll(hashes)
+            .build();
+
+        assert built.getElementsCount() == numberOfElements;
+        assert built.mightContain(hashes.get(42));
+        assert Arrays.equals(filter.writeTo(), built.writeTo());
+    }
+
+    @Test
+    public void builderDeduplicateTest() throws IOException {
+        byte[] hash1 = new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+        byte[] hash2 = new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{-1, 0, 0, 11, 12, 13, 14, 15, 0, 0, 0});
+        byte[] expectedBytes = new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 0, 3, 10, 0, 0, 11, 12, 13, 14, 15, 0, 0, 0,
+            0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+
+        PartialVariableHashFilter filter = new PartialVariableHashFilter.Builder((byte) 10, PartitionOffset.POINT, 3, 0.000001F)
+            .add(hash1)
+            .add(buffer, 1)
+            .add(hash2)
+            .deduplicate(true)
+            .build();
+
+        assert filter.getElementsCount() == 2;
+        assert Arrays.equals(expectedBytes, filter.writeTo());
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> filter.add(hash1));
+        Assertions.assertThrows(IllegalArgumentException.class,
+            () -> new PartialVariableHashFilter.Builder((byte) 10, PartitionOffset.POINT, 3, 0.000001F).add(buffer, 2));
+    }
+
+    @Test
+    public void byteBufferSortedAndUnsortedTest() throws IOException {
+        byte[] sorted = new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 0, 3, 2, -128, 0, -1, -1, 5, 6};
+        byte[] unsorted = new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 0, 3, 2, 5, 6, -1, -1, -128, 0, 1};
+
+        PartialVariableHashFilter mapped = new PartialVariableHashFilter(ByteBuffer.wrap(sorted));
+        PartialVariableHashFilter copied = new PartialVariableHashFilter(ByteBuffer.wrap(unsorted));
+
+        assert mapped.getElementsCount() == 3;
+        assert mapped.mightContain(new byte[]{-1, -1});
+        assert !mapped.mightContain(new byte[]{-1, 0});
+        assert Arrays.equals(sorted, mapped.writeTo());
+        assert copied.getElementsCount() == 3;
+        assert Arrays.equals(sorted, copied.writeTo());
+
+        mapped.add(new byte[]{0, 0});
+        assert mapped.mightContain(new byte[]{0, 0});
+        assert mapped.getElementsCount() == 4;
+        Assertions.assertThrows(IllegalArgumentException.class,
+            () -> new PartialVariableHashFilter(ByteBuffer.wrap(new byte[]{0, 1, 2})));
+    }
+
+    @Test
+    public void mapFileTest() throws IOException {
+        byte[] byteArray = new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 0, 6, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14};
+        Path file = Files.createTempFile("filter", ".bin");
+        try {
+            Files.write(file, byteArray);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                PartialVariableHashFilter filter = PartialVariableHashFilter.map(channel, 0, channel.size());
+
+                assert filter.getSize() == 2;
+                assert filter.getElementsCount() == 6;
+                assert filter.mightContain(new byte[]{3, 4});
+                assert !filter.mightContain(new byte[]{4, 5});
+                assert Arrays.equals(byteArray, filter.writeTo());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void readFromStreamTest() throws IOException {
+        byte[] byteArray = new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 0, 6, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14};
+        List<Integer> progress = new ArrayList<>();
+
+        PartialVariableHashFilter filter = PartialVariableHashFilter.readFrom(new ByteArrayInputStream(byteArray),
+            (recordsRead, bytesRead) -> progress.add(recordsRead));
+        PartialVariableHashFilter channelFilter = PartialVariableHashFilter.readFrom(
+            Channels.newChannel(new ByteArrayInputStream(byteArray)), null);
+
+        assert filter.getElementsCount() == 6;
+        assert filter.mightContain(new byte[]{3, 4});
+        assert progress.get(progress.size() - 1) == 6;
+        assert Arrays.equals(byteArray, filter.writeTo());
+        assert Arrays.equals(byteArray, channelFilter.writeTo());
+        assert PartialVariableHashFilter.readFrom(new ByteArrayInputStream(new byte[0])).getElementsCount() == 0;
+    }
+
+    @Test
+    public void readFromTruncatedStreamTest() {
+        byte[] truncatedRecord = new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 0, 6, 2, 3, 4, 5, 6, 7};
+        byte[] truncatedHeader = new byte[]{0, 1, 53, -122, 55};
+
+        TruncatedFilterException exception = Assertions.assertThrows(TruncatedFilterException.class,
+            () -> PartialVariableHashFilter.readFrom(new ByteArrayInputStream(truncatedRecord)));
+        Assertions.assertThrows(EOFException.class,
+            () -> PartialVariableHashFilter.readFrom(new ByteArrayInputStream(truncatedHeader)));
+
+        assert exception.getRecordsRead() == 2;
+        assert exception.getTrailingBytes() == 1;
+        assert new PartialVariableHashFilter(truncatedRecord).getElementsCount() == 2;
+    }
+
+    @Test
+    public void writeToStreamAndChannelTest() throws IOException {
+        byte[] byteArray = new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 0, 6, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14};
+        PartialVariableHashFilter heapFilter = new PartialVariableHashFilter(byteArray);
+        PartialVariableHashFilter bufferFilter = new PartialVariableHashFilter(ByteBuffer.wrap(byteArray));
+
+        for (PartialVariableHashFilter filter : Arrays.asList(heapFilter, bufferFilter)) {
+            ByteArrayOutputStream streamOutput = new ByteArrayOutputStream();
+            filter.writeTo(streamOutput);
+            ByteArrayOutputStream channelOutput = new ByteArrayOutputStream();
+            filter.writeTo(Channels.newChannel(channelOutput));
+
+            assert Arrays.equals(byteArray, streamOutput.toByteArray());
+            assert Arrays.equals(byteArray, channelOutput.toByteArray());
+        }
+    }
+
+    @Test
+    public void mightContainAllTest() {
+        Random random = new Random(11);
+        for (byte size : new byte[]{2, 4, 12}) {
+            PartialVariableHashFilter.Builder builder = new PartialVariableHashFilter.Builder(size, PartitionOffset.POINT, 2000, 0.000001F);
+            byte[][] probes = new byte[5000][];
+            ByteBuffer packedProbes = ByteBuffer.allocate(probes.length * 16);
+            for (int i = 0; i < probes.length; i++) {
+                probes[i] = new byte[i % 100 == 0 ? 1 : 16];
+                random.nextBytes(probes[i]);
+                if (i % 3 == 0 && i % 100 != 0) {
+                    builder.add(probes[i]);
+                }
+                packedProbes.put(Arrays.copyOf(probes[i], 16));
+            }
+            packedProbes.flip();
+            PartialVariableHashFilter filter = builder.build();
+
+            boolean[] result = filter.mightContainAll(probes);
+            boolean[] packedResult = filter.mightContainAll(packedProbes, 16);
+
+            for (int i = 0; i < probes.length; i++) {
+                assert result[i] == filter.mightContain(probes[i]);
+                assert packedResult[i] == filter.mightContain(Arrays.copyOf(probes[i], 16));
+                assert result[i] || i % 3 != 0 || i % 100 == 0;
+            }
+        }
+    }
+
+    @Test
+    public void prefixIndexTest() throws IOException {
+        Random random = new Random(13);
+        LoadOptions options = LoadOptions.defaults().withPrefixIndex(true);
+        for (byte size : new byte[]{1, 3, 8, 12}) {
+            byte[] unsorted = new byte[11 + 5000 * size];
+            random.nextBytes(unsorted);
+            System.arraycopy(new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 19, -120, size}, 0, unsorted, 0, 11);
+            byte[] serialized = new PartialVariableHashFilter(unsorted).writeTo();
+            byte[][] probes = new byte[10000][];
+            for (int i = 0; i < probes.length; i++) {
+                probes[i] = new byte[size];
+                if (i % 2 == 0) {
+                    System.arraycopy(unsorted, 11 + i / 2 * size, probes[i], 0, size);
+                } else {
+                    random.nextBytes(probes[i]);
+                }
+            }
+
+            PartialVariableHashFilter filter = new PartialVariableHashFilter(serialized);
+            List<PartialVariableHashFilter> indexed = Arrays.asList(
+                new PartialVariableHashFilter(unsorted, options),
+                new PartialVariableHashFilter(ByteBuffer.wrap(serialized), options),
+                new PartialVariableHashFilter(ByteBuffer.wrap(unsorted), options),
+                PartialVariableHashFilter.readFrom(new ByteArrayInputStream(unsorted), null, options));
+
+            for (PartialVariableHashFilter indexedFilter : indexed) {
+                assert indexedFilter.getPrefixIndexBytes() > 0;
+                for (int i = 0; i < probes.length; i++) {
+                    assert indexedFilter.mightContain(probes[i]) == filter.mightContain(probes[i]);
+                    assert indexedFilter.mightContain(probes[i]) || i % 2 != 0;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void eytzingerLayoutTest() throws IOException {
+        Random random = new Random(17);
+        LoadOptions options = LoadOptions.defaults().withLayout(StorageLayout.EYTZINGER);
+        for (byte size : new byte[]{2, 5, 8, 12}) {
+            for (int count : new int[]{0, 1, 2, 7, 100, 1023, 1024, 3000}) {
+                byte[] data = new byte[11 + count * size];
+                random.nextBytes(data);
+                System.arraycopy(new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 11, -72, size}, 0, data, 0, 11);
+
+                PartialVariableHashFilter filter = new PartialVariableHashFilter(data);
+                PartialVariableHashFilter eytzinger = new PartialVariableHashFilter(data, options);
+                PartialVariableHashFilter mapped = new PartialVariableHashFilter(ByteBuffer.wrap(filter.writeTo()), options);
+                byte[][] probes = new byte[2 * count][];
+                for (int i = 0; i < probes.length; i++) {
+                    probes[i] = i < count ? Arrays.copyOfRange(data, 11 + i * size, 11 + (i + 1) * size) : new byte[size];
+                    if (i >= count) {
+                        random.nextBytes(probes[i]);
+                    }
+                }
+
+                assert Arrays.equals(filter.writeTo(), eytzinger.writeTo());
+                assert Arrays.equals(filter.getArray(), mapped.getArray());
+                boolean[] batch = eytzinger.mightContainAll(probes);
+                for (int i = 0; i < probes.length; i++) {
+                    assert eytzinger.mightContain(probes[i]) == filter.mightContain(probes[i]);
+                    assert mapped.mightContain(probes[i]) == filter.mightContain(probes[i]);
+                    assert batch[i] == filter.mightContain(probes[i]);
+                    assert batch[i] || i >= count;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void prefilterTest() throws IOException {
+        Random random = new Random(19);
+        LoadOptions options = LoadOptions.defaults().withPrefilter(true);
+        for (byte size : new byte[]{2, 8, 20}) {
+            int count = 20000;
+            byte[] data = new byte[11 + count * size];
+            random.nextBytes(data);
+            System.arraycopy(new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 78, 32, size}, 0, data, 0, 11);
+            byte[][] probes = new byte[2 * count][];
+            for (int i = 0; i < probes.length; i++) {
+                probes[i] = i < count ? Arrays.copyOfRange(data, 11 + i * size, 11 + (i + 1) * size) : new byte[size];
+                if (i >= count) {
+                    random.nextBytes(probes[i]);
+                }
+            }
+
+            PartialVariableHashFilter filter = new PartialVariableHashFilter(data);
+            PartialVariableHashFilter prefiltered = new PartialVariableHashFilter(ByteBuffer.wrap(filter.writeTo()), options);
+            boolean[] batch = prefiltered.mightContainAll(probes);
+            for (int i = 0; i < probes.length; i++) {
+                assert prefiltered.mightContain(probes[i]) == filter.mightContain(probes[i]);
+                assert batch[i] == filter.mightContain(probes[i]);
+            }
+            // lookups are only counted with metrics
+            assert prefiltered.getPrefilterRejectionRate() == 0;
+            prefiltered.setMetrics(new FilterMetrics());
+            for (byte[] probe : probes) {
+                prefiltered.mightContain(probe);
+            }
+
+            assert prefiltered.getPrefilterBytes() > 0;
+            assert size == 2 || prefiltered.getPrefilterRejectionRate() > 0.45;
+            byte[] added = new byte[size];
+            random.nextBytes(added);
+            prefiltered.add(added);
+            assert prefiltered.mightContain(added);
+        }
+    }
+
+    @Test
+    public void deltaTest() throws IOException {
+        Random random = new Random(23);
+        for (byte size : new byte[]{2, 12}) {
+            int count = 3000;
+            byte[] baseData = new byte[11 + count * size];
+            random.nextBytes(baseData);
+            System.arraycopy(new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 11, -72, size}, 0, baseData, 0, 11);
+            byte[] targetData = new byte[11 + count * size];
+            random.nextBytes(targetData);
+            System.arraycopy(new byte[]{0, 1, 60, 35, -41, 10, 0, 0, 15, -96, size}, 0, targetData, 0, 11);
+            System.arraycopy(baseData, 11 + 1000 * size, targetData, 11, 2000 * size);
+            System.arraycopy(baseData, 11, targetData, 11 + 2000 * size, size);
+
+            PartialVariableHashFilter base = new PartialVariableHashFilter(baseData);
+            PartialVariableHashFilter target = new PartialVariableHashFilter(targetData);
+            byte[] delta = PartialVariableHashFilter.createDelta(base, target);
+            assert size == 2 || delta.length == 23 + 2 * 999 * size;
+
+            PartialVariableHashFilter updated = base.applyDelta(delta);
+            assert Arrays.equals(updated.writeTo(), target.writeTo());
+            PartialVariableHashFilter indexed = base.applyDelta(delta, LoadOptions.defaults().withPrefixIndex(true));
+            assert Arrays.equals(indexed.writeTo(), target.writeTo());
+            assert indexed.getPrefixIndexBytes() > 0;
+            PartialVariableHashFilter eytzinger = base.applyDelta(delta,
+                LoadOptions.defaults().withLayout(StorageLayout.EYTZINGER).withPrefixIndex(true));
+            assert Arrays.equals(eytzinger.writeTo(), target.writeTo());
+            assert eytzinger.mightContain(Arrays.copyOfRange(targetData, 11, 11 + size));
+            assert Arrays.equals(base.applyDelta(PartialVariableHashFilter.createDelta(base, base)).writeTo(),
+                base.writeTo());
+
+            Assertions.assertThrows(IllegalArgumentException.class, () -> target.applyDelta(delta));
+            Assertions.assertThrows(IllegalArgumentException.class, () -> base.applyDelta(Arrays.copyOf(delta, 30)));
+        }
+    }
+
+    @Test
+    public void compressedFormatTest() throws IOException {
+        Random random = new Random(29);
+        LoadOptions[] options = {LoadOptions.defaults(), LoadOptions.defaults().withPrefixIndex(true),
+            LoadOptions.defaults().withLayout(StorageLayout.EYTZINGER), LoadOptions.defaults().withPrefilter(true)};
+        for (byte size : new byte[]{1, 2, 5, 8, 9, 12}) {
+            for (int count : new int[]{0, 1, 127, 128, 129, 3000}) {
+                byte[] data = new byte[11 + count * size];
+                random.nextBytes(data);
+                System.arraycopy(new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 11, -72, size}, 0, data, 0, 11);
+                if (count > 200) {
+                    // duplicates and records sharing their leading bytes across block boundaries
+                    for (int i = 100; i < 200; i++) {
+                        System.arraycopy(data, 11 + 99 * size, data, 11 + i * size, Math.min(size, 8));
+                    }
+                }
+                byte[][] probes = new byte[2 * count][];
+                for (int i = 0; i < probes.length; i++) {
+                    probes[i] = i < count ? Arrays.copyOfRange(data, 11 + i * size, 11 + (i + 1) * size) : new byte[size];
+                    if (i >= count) {
+                        random.nextBytes(probes[i]);
+                    }
+                }
+
+                PartialVariableHashFilter filter = new PartialVariableHashFilter(data);
+                byte[] compressed = filter.writeCompressed();
+                assert compressed[1] == 2;
+                for (LoadOptions option : options) {
+                    PartialVariableHashFilter fromArray = new PartialVariableHashFilter(compressed, option);
+                    PartialVariableHashFilter fromBuffer = new PartialVariableHashFilter(ByteBuffer.wrap(compressed), option);
+                    PartialVariableHashFilter fromStream = PartialVariableHashFilter.readFrom(
+                        new ByteArrayInputStream(compressed), null, option);
+                    assert Arrays.equals(fromArray.writeTo(), filter.writeTo());
+                    assert Arrays.equals(fromBuffer.getArray(), filter.getArray());
+                    assert Arrays.equals(fromStream.writeCompressed(), compressed);
+                    boolean[] batch = fromBuffer.mightContainAll(probes);
+                    for (int i = 0; i < probes.length; i++) {
+                        assert fromArray.mightContain(probes[i]) == filter.mightContain(probes[i]);
+                        assert fromStream.mightContain(probes[i]) == filter.mightContain(probes[i]);
+                        assert batch[i] == filter.mightContain(probes[i]);
+                        assert batch[i] || i >= count;
+                    }
+                }
+
+                PartialVariableHashFilter modified = new PartialVariableHashFilter(compressed);
+                byte[] added = new byte[size];
+                random.nextBytes(added);
+                modified.add(added);
+                assert modified.mightContain(added);
+                assert modified.getElementsCount() == count + 1;
+            }
+        }
+    }
+
+    @Test
+    public void compressedSizeTest() throws IOException {
+        Random random = new Random(31);
+        int count = 100000;
+        for (byte size : new byte[]{4, 8, 16}) {
+            byte[] data = new byte[11 + count * size];
+            random.nextBytes(data);
+            System.arraycopy(new byte[]{0, 1, 53, -122, 55, -67, 0, 1, -122, -96, size}, 0, data, 0, 11);
+
+            PartialVariableHashFilter filter = new PartialVariableHashFilter(data);
+            int compressedLength = filter.writeCompressed().length;
+            int rawLength = filter.writeTo().length;
+            // sorted uniform numbers of b bits cost about b - log2(count) + 2 bits each
+            assert compressedLength < rawLength - count * 13 / 8;
+        }
+
+        byte[] unsupported = {0, 3, 53, -122, 55, -67, 0, 0, 11, -72, 2, 1, 2};
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new PartialVariableHashFilter(unsupported));
+        Assertions.assertThrows(IOException.class,
+            () -> PartialVariableHashFilter.readFrom(new ByteArrayInputStream(unsupported)));
+        byte[] small = new byte[11 + 50 * 2];
+        random.nextBytes(small);
+        System.arraycopy(unsupported, 0, small, 0, 11);
+        small[1] = 1;
+        byte[] truncated = Arrays.copyOf(new PartialVariableHashFilter(small).writeCompressed(), 40);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new PartialVariableHashFilter(truncated));
+        Assertions.assertThrows(IOException.class,
+            () -> PartialVariableHashFilter.readFrom(new ByteArrayInputStream(truncated)));
+    }
+
+    @Test
+    public void compressedIndexValidationTest() throws IOException {
+        Random random = new Random(67);
+        for (byte size : new byte[]{4, 12}) {
+            byte[] data = new byte[11 + 1000 * size];
+            random.nextBytes(data);
+            System.arraycopy(new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 3, -24, size}, 0, data, 0, 11);
+            byte[] compressed = new PartialVariableHashFilter(data).writeCompressed();
+            // filter header, payload header, then 16 bytes per block: first leading number and bit position
+            int index = 11 + 11;
+            assert new PartialVariableHashFilter(compressed).getElementsCount() == 1000;
+
+            List<byte[]> corrupted = new ArrayList<>();
+            byte[] unsorted = compressed.clone();
+            ByteBuffer.wrap(unsorted).putLong(index + 3 * 16, Long.MIN_VALUE);
+            corrupted.add(unsorted);
+            byte[] outside = compressed.clone();
+            ByteBuffer.wrap(outside).putLong(index + 2 * 16 + 8, 1L << 40);
+            corrupted.add(outside);
+            byte[] shifted = compressed.clone();
+            long position = ByteBuffer.wrap(compressed).getLong(index + 5 * 16 + 8);
+            ByteBuffer.wrap(shifted).putLong(index + 5 * 16 + 8, position + 1);
+            corrupted.add(shifted);
+            byte[] escaped = compressed.clone();
+            // all ones at the end of the bit stream escape to a raw gap reading past it
+            int streamEnd = index + 8 * 16 + ByteBuffer.wrap(compressed).getInt(11 + 7);
+            Arrays.fill(escaped, streamEnd - 24, streamEnd, (byte) -1);
+            corrupted.add(escaped);
+
+            for (byte[] invalid : corrupted) {
+                Assertions.assertThrows(IllegalArgumentException.class, () -> new PartialVariableHashFilter(invalid));
+                Assertions.assertThrows(IllegalArgumentException.class,
+                    () -> new PartialVariableHashFilter(ByteBuffer.wrap(invalid)));
+                Assertions.assertThrows(IOException.class,
+                    () -> PartialVariableHashFilter.readFrom(new ByteArrayInputStream(invalid)));
+            }
+        }
+    }
+
+    @Test
+    public void offHeapTest() throws IOException {
+        Random random = new Random(37);
+        LoadOptions options = LoadOptions.defaults().withOffHeap(true);
+        for (byte size : new byte[]{3, 8, 12}) {
+            int count = 5000;
+            byte[] data = new byte[11 + count * size];
+            random.nextBytes(data);
+            System.arraycopy(new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 19, -120, size}, 0, data, 0, 11);
+            byte[][] probes = new byte[2 * count][];
+            for (int i = 0; i < probes.length; i++) {
+                probes[i] = i < count ? Arrays.copyOfRange(data, 11 + i * size, 11 + (i + 1) * size) : new byte[size];
+                if (i >= count) {
+                    random.nextBytes(probes[i]);
+                }
+            }
+
+            PartialVariableHashFilter filter = new PartialVariableHashFilter(data);
+            PartialVariableHashFilter offHeap = new PartialVariableHashFilter(data, options.withPrefixIndex(true));
+            PartialVariableHashFilter streamed = PartialVariableHashFilter.readFrom(
+                new ByteArrayInputStream(data), null, options);
+            assert offHeap.storage().records().isDirect();
+            assert streamed.storage().records().isDirect();
+            assert Arrays.equals(offHeap.writeTo(), filter.writeTo());
+            boolean[] batch = streamed.mightContainAll(probes);
+            for (int i = 0; i < probes.length; i++) {
+                assert offHeap.mightContain(probes[i]) == filter.mightContain(probes[i]);
+                assert batch[i] == filter.mightContain(probes[i]);
+            }
+
+            offHeap.close();
+            Assertions.assertThrows(IllegalStateException.class, () -> offHeap.mightContain(probes[0]));
+            HashStorage released = streamed.storage();
+            byte[] added = new byte[size];
+            random.nextBytes(added);
+            streamed.add(added);
+            assert streamed.mightContain(added);
+            assert released.memoryBytes() == 0;
+            streamed.close();
+            filter.close();
+            assert filter.mightContain(probes[0]);
+        }
+    }
+
+    @Test
+    public void offHeapConcurrentCloseTest() throws Exception {
+        Random random = new Random(43);
+        int count = 100000;
+        byte[] data = new byte[11 + count * 8];
+        random.nextBytes(data);
+        System.arraycopy(new byte[]{0, 1, 53, -122, 55, -67, 0, 1, -122, -96, 8}, 0, data, 0, 11);
+        byte[] probe = Arrays.copyOfRange(data, 11, 19);
+
+        for (int round = 0; round < 20; round++) {
+            PartialVariableHashFilter filter = new PartialVariableHashFilter(data,
+                LoadOptions.defaults().withOffHeap(true));
+            CountDownLatch started = new CountDownLatch(4);
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            List<Future<Integer>> lookups = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                lookups.add(executor.submit(() -> {
+                    started.countDown();
+                    int found = 0;
+                    try {
+                        while (true) {
+                            found += filter.mightContain(probe) ? 1 : 0;
+                        }
+                    } catch (IllegalStateException e) {
+                        return found;
+                    }
+                }));
+            }
+            started.await();
+            filter.close();
+            for (Future<Integer> lookup : lookups) {
+                lookup.get(10, TimeUnit.SECONDS);
+            }
+            executor.shutdown();
+            assert filter.getMemoryBytes() == 0;
+        }
+    }
+
+    @Test
+    public void parallelLoadTest() throws IOException {
+        Random random = new Random(41);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (byte size : new byte[]{4, 8, 12}) {
+                int count = 200000;
+                byte[] data = new byte[11 + count * size];
+                random.nextBytes(data);
+                System.arraycopy(new byte[]{0, 1, 53, -122, 55, -67, 0, 3, 13, 64, size}, 0, data, 0, 11);
+                // duplicates and equal leading bytes
+                System.arraycopy(data, 11, data, 11 + 1000 * size, 1000 * size);
+                for (int i = 5000; i < 6000; i++) {
+                    data[11 + i * size] = 7;
+                }
+
+                PartialVariableHashFilter filter = new PartialVariableHashFilter(data);
+                PartialVariableHashFilter parallel = new PartialVariableHashFilter(data,
+                    LoadOptions.defaults().withParallelLoad(pool).withPrefixIndex(true));
+                PartialVariableHashFilter common = new PartialVariableHashFilter(ByteBuffer.wrap(data),
+                    LoadOptions.defaults().withParallelLoad(true));
+                assert Arrays.equals(parallel.writeTo(), filter.writeTo());
+                assert Arrays.equals(common.writeTo(), filter.writeTo());
+                for (int i = 0; i < count; i += 97) {
+                    byte[] probe = Arrays.copyOfRange(data, 11 + i * size, 11 + (i + 1) * size);
+                    assert parallel.mightContain(probe);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void metricsTest() throws Exception {
+        byte[] data = new byte[11 + 1000 * 4];
+        new Random(43).nextBytes(data);
+        System.arraycopy(new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 3, -24, 4}, 0, data, 0, 11);
+
+        FilterMetrics metrics = new FilterMetrics();
+        AtomicInteger loadedElements = new AtomicInteger();
+        AtomicInteger serializedBytes = new AtomicInteger();
+        metrics.addListener(new MetricsListener() {
+            @Override
+            public void onLoad(int elements, long nanos) {
+                loadedElements.addAndGet(elements);
+            }
+
+            @Override
+            public void onSerialize(long bytes, long nanos) {
+                serializedBytes.addAndGet((int) bytes);
+            }
+        });
+
+        PartialVariableHashFilter filter = new PartialVariableHashFilter(data,
+            LoadOptions.defaults().withMetrics(metrics));
+        PartialVariableHashFilter plain = new PartialVariableHashFilter(data);
+        assert filter.getMetrics() == metrics;
+        assert plain.getMetrics() == null;
+        assert metrics.getLoads() == 1;
+        assert loadedElements.get() == filter.getElementsCount();
+
+        for (int i = 0; i < 1000; i++) {
+            assert filter.mightContain(Arrays.copyOfRange(data, 11 + i * 4, 15 + i * 4));
+            plain.mightContain(new byte[4]);
+        }
+        filter.mightContainAll(new byte[][]{Arrays.copyOfRange(data, 11, 15), {1, 2}});
+        assert metrics.getLookups() == 1002;
+        assert metrics.getHits() == 1001;
+        assert metrics.getLatencyP50Nanos() > 0;
+        assert metrics.getLatencyP999Nanos() >= metrics.getLatencyP50Nanos();
+
+        byte[] serialized = filter.writeTo();
+        filter.writeCompressed();
+        assert metrics.getSerializations() == 2;
+        assert serializedBytes.get() == metrics.getSerializedBytes();
+        assert metrics.getSerializedBytes() > serialized.length;
+
+        PartialVariableHashFilter streamed = PartialVariableHashFilter.readFrom(
+            new ByteArrayInputStream(serialized), null, LoadOptions.defaults().withMetrics(metrics));
+        assert metrics.getLoads() == 2;
+        assert metrics.getFilters() == 2;
+        assert metrics.getElementsCount() == 2L * filter.getElementsCount();
+        assert metrics.getRetainedBytes() == filter.getMemoryBytes() + streamed.getMemoryBytes();
+
+        streamed.setMetrics(null);
+        assert metrics.getFilters() == 1;
+        FilterMetrics.Snapshot snapshot = metrics.snapshot();
+        assert snapshot.getLookups() == 1002;
+        assert snapshot.getRetainedBytes() == filter.getMemoryBytes();
+
+        ObjectName name = metrics.registerMBean("metricsTest");
+        try {
+            Object lookups = ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Lookups");
+            assert lookups.equals(1002L);
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+
+        metrics.reset();
+        assert metrics.getLookups() == 0 && metrics.getLatencyP99Nanos() == 0;
+    }
+
+    @Test
+    public void setOperationsTest() throws IOException {
+        Random random = new Random(47);
+        for (int count : new int[]{1000, 100000}) {
+            byte[] hashes = new byte[count * 12];
+            random.nextBytes(hashes);
+            // the second filter shares every third hash and holds some longer duplicates of shared leading bytes
+            byte[] firstData = filterData((byte) 8, count, hashes, 0, 12);
+            byte[] secondHashes = new byte[count / 2 * 12];
+            random.nextBytes(secondHashes);
+            for (int i = 0; i < count / 2; i += 3) {
+                System.arraycopy(hashes, i * 12, secondHashes, i * 12, 12);
+                System.arraycopy(hashes, i * 12, secondHashes, (i + 1) * 12, 8);
+            }
+            byte[] secondData = filterData((byte) 12, count / 2, secondHashes, 0, 12);
+
+            PartialVariableHashFilter first = new PartialVariableHashFilter(firstData);
+            PartialVariableHashFilter second = new PartialVariableHashFilter(secondData);
+            Set<ByteBuffer> firstSet = truncatedSet(hashes, count, 8);
+            Set<ByteBuffer> secondSet = truncatedSet(secondHashes, count / 2, 8);
+
+            Set<ByteBuffer> union = new HashSet<>(firstSet);
+            union.addAll(secondSet);
+            Set<ByteBuffer> intersection = new HashSet<>(firstSet);
+            intersection.retainAll(secondSet);
+            Set<ByteBuffer> difference = new HashSet<>(firstSet);
+            difference.removeAll(secondSet);
+
+            assertSetFilter(PartialVariableHashFilter.union(first, second), union);
+            assertSetFilter(PartialVariableHashFilter.union(second, first, LoadOptions.defaults().withPrefilter(true)),
+                union);
+            assertSetFilter(PartialVariableHashFilter.intersect(first, second), intersection);
+            assertSetFilter(PartialVariableHashFilter.difference(first, second), difference);
+            assert PartialVariableHashFilter.difference(second, first).getSize() == 8;
+            assert PartialVariableHashFilter.union(first, second).getDefinedElementAmount() == count + count / 2;
+            LoadOptions indexed = LoadOptions.defaults().withPrefixIndex(true);
+            assert PartialVariableHashFilter.union(first, second, indexed).getPrefixIndexBytes() > 0;
+            assert PartialVariableHashFilter.intersect(first, second, indexed).getPrefixIndexBytes() > 0;
+            assert PartialVariableHashFilter.difference(first, second, indexed).getPrefixIndexBytes() > 0;
+        }
+
+        PartialVariableHashFilter empty = new PartialVariableHashFilter(new byte[0]);
+        PartialVariableHashFilter filter = new PartialVariableHashFilter(
+            new byte[]{0, 1, 53, -122, 55, -67, 0, 0, 0, 6, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14});
+        assert Arrays.equals(PartialVariableHashFilter.union(empty, filter).writeTo(), filter.writeTo());
+        assert PartialVariableHashFilter.intersect(filter, empty).getElementsCount() == 0;
+    }
+
+    private static byte[] filterData(byte size, int count, byte[] hashes, int offset, int stride) {
+        ByteBuffer data = ByteBuffer.allocate(11 + count * size);
+        data.putShort((short) 1).putFloat(0.01f).putInt(count).put(size);
+        for (int i = 0; i < count; i++) {
+            data.put(hashes, offset + i * stride, size);
+        }
+        return data.array();
+    }
+
+    private static Set<ByteBuffer> truncatedSet(byte[] hashes, int count, int size) {
+        Set<ByteBuffer> set = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            set.add(ByteBuffer.wrap(Arrays.copyOfRange(hashes, i * 12, i * 12 + size)));
+        }
+        return set;
+    }
+
+    private static void assertSetFilter(PartialVariableHashFilter filter, Set<ByteBuffer> expected)
+        throws IOException {
+        assert filter.getSize() == 8;
+        assert filter.getElementsCount() == expected.size();
+        for (ByteBuffer hash : expected) {
+            assert filter.mightContain(hash.array());
+        }
+        assert Arrays.equals(new PartialVariableHashFilter(filter.writeTo()).writeTo(), filter.writeTo());
+    }
+
+    @Test
+    public void lazyLoadTest() throws Exception {
+        Random random = new Random(53);
+        byte[] hashes = new byte[5000 * 5];
+        random.nextBytes(hashes);
+        byte[] data = filterData((byte) 5, 5000, hashes, 0, 5);
+        PartialVariableHashFilter eager = new PartialVariableHashFilter(data);
+        byte[] compressed = eager.writeCompressed();
+        assert eager.isLoaded() && eager.whenLoaded().isDone();
+
+        for (byte[] serialized : new byte[][]{data, compressed}) {
+            PartialVariableHashFilter lazy = new PartialVariableHashFilter(serialized,
+                LoadOptions.defaults().withLazyLoad(true).withPrefixIndex(true));
+            assert !lazy.isLoaded();
+            assert lazy.getSize() == 5;
+            assert lazy.getElementsCount() == 5000;
+            assert lazy.getMemoryBytes() == 0;
+            CompletableFuture<PartialVariableHashFilter> loaded = lazy.whenLoaded();
+            assert !loaded.isDone();
+
+            assert lazy.mightContain(Arrays.copyOfRange(hashes, 0, 5));
+            assert lazy.isLoaded() && loaded.get() == lazy;
+            assert lazy.getMemoryBytes() > 0;
+            assert Arrays.equals(lazy.writeTo(), eager.writeTo());
+
+            PartialVariableHashFilter buffered = new PartialVariableHashFilter(ByteBuffer.wrap(serialized),
+                LoadOptions.defaults().withLazyLoad(true));
+            assert !buffered.isLoaded() && buffered.getElementsCount() == 5000;
+            assert Arrays.equals(buffered.writeTo(), eager.writeTo());
+            assert buffered.isLoaded();
+        }
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            FilterMetrics metrics = new FilterMetrics();
+            PartialVariableHashFilter background = PartialVariableHashFilter.load(data,
+                LoadOptions.defaults().withBackgroundLoad(executor).withMetrics(metrics));
+            assert background.getSize() == 5;
+            assert background.whenLoaded().get(10, TimeUnit.SECONDS) == background;
+            assert background.isLoaded();
+            assert metrics.getLoads() == 1 && metrics.getFilters() == 1;
+            assert Arrays.equals(background.writeTo(), eager.writeTo());
+
+            // the compressed payload length does not match its header
+            byte[] invalid = Arrays.copyOf(compressed, compressed.length - 1);
+            PartialVariableHashFilter failing = PartialVariableHashFilter.load(ByteBuffer.wrap(invalid),
+                LoadOptions.defaults().withBackgroundLoad(executor));
+            IllegalArgumentException failure = null;
+            try {
+                failing.whenLoaded().get(10, TimeUnit.SECONDS);
+                assert false;
+            } catch (ExecutionException e) {
+                failure = (IllegalArgumentException) e.getCause();
+            }
+            // the failure is final, every later use reports it
+            for (int i = 0; i < 2; i++) {
+                assert Assertions.assertThrows(IllegalArgumentException.class,
+                    () -> failing.mightContain(new byte[5])) == failure;
+                assert failing.whenLoaded().isCompletedExceptionally();
+            }
+            assert !failing.isLoaded();
+            failing.close();
+
+            // constructors do not load in the background
+            LoadOptions backgroundOptions = LoadOptions.defaults().withBackgroundLoad(executor);
+            Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new PartialVariableHashFilter(data, backgroundOptions));
+            Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new PartialVariableHashFilter(ByteBuffer.wrap(data), backgroundOptions));
+        } finally {
+            executor.shutdown();
+        }
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new PartialVariableHashFilter(
+            new byte[]{0, 3, 0, 0, 0, 0, 0, 0, 0, 1, 5, 1, 2, 3, 4, 5}, LoadOptions.defaults().withLazyLoad(true)));
+
+        // closed before the first use, the filter is never loaded
+        PartialVariableHashFilter closed = new PartialVariableHashFilter(data,
+            LoadOptions.defaults().withLazyLoad(true).withOffHeap(true));
+        closed.close();
+        Assertions.assertThrows(IllegalStateException.class, () -> closed.mightContain(new byte[5]));
+        Assertions.assertThrows(IllegalStateException.class, closed::writeTo);
+        assert !closed.isLoaded() && closed.getMemoryBytes() == 0;
+        assert closed.whenLoaded().isCompletedExceptionally();
+    }
+
+    @Test
+    public void largeDeclaredElementsTest() throws IOException {
+        // the storage grows with the added elements instead of reserving the declared amount
+        PartialVariableHashFilter filter =
+            new PartialVariableHashFilter((byte) 32, PartitionOffset.POINT, Integer.MAX_VALUE, 0.01f);
+        PartialVariableHashFilter.Builder builder =
+            new PartialVariableHashFilter.Builder((byte) 32, PartitionOffset.POINT, Integer.MAX_VALUE, 0.01f);
+        Random random = new Random(61);
+        for (int i = 0; i < 1000; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            filter.add(hash);
+            builder.add(hash);
+        }
+        assert filter.getElementsCount() == 1000;
+        assert filter.getMemoryBytes() < 1 << 22;
+        assert Arrays.equals(builder.build().writeTo(), filter.writeTo());
+    }
 }
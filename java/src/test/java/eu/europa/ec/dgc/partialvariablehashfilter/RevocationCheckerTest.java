@@ -0,0 +1,90 @@
+/*
+ *  ---license-start
+ *  eu-digital-green-certificates / dgca-partial-hash-filter
+ *  ---
+ *  Copyright (C) 2022 T-Systems International GmbH and all other contributors
+ *  ---
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  ---license-end
+ */
+
+package eu.europa.ec.dgc.partialvariablehashfilter;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class RevocationCheckerTest {
+
+    @Test
+    public void checkTest() throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        Random random = new Random(47);
+        String[] ucis = {"URN:UVCI:01:DE:IZ12345A/5CWLU12RNOB9RXSEOP6FG8#W", "URN:UVCI:01:AT:ÄÖÜ-€-😀", "\uD800x"};
+        byte[][] signatures = new byte[ucis.length][64];
+
+        PartialVariableHashFilter signatureFilter = new PartialVariableHashFilter((byte) 4, PartitionOffset.POINT, 10, 0.001F);
+        PartialVariableHashFilter uciFilter = new PartialVariableHashFilter((byte) 8, PartitionOffset.POINT, 10, 0.001F);
+        PartialVariableHashFilter countryCodeUciFilter = new PartialVariableHashFilter((byte) 16, PartitionOffset.POINT, 10, 0.001F);
+        for (int i = 0; i < ucis.length; i++) {
+            random.nextBytes(signatures[i]);
+            if (i != 0) {
+                signatureFilter.add(digest.digest(Arrays.copyOf(signatures[i], 32)));
+            }
+            if (i != 1) {
+                uciFilter.add(digest.digest(ucis[i].getBytes(StandardCharsets.UTF_8)));
+            }
+            countryCodeUciFilter.add(digest.digest(("DE" + ucis[i]).getBytes(StandardCharsets.UTF_8)));
+        }
+
+        Map<HashType, PartialVariableHashFilter> filters = new EnumMap<>(HashType.class);
+        filters.put(HashType.SIGNATURE, signatureFilter);
+        filters.put(HashType.UCI, uciFilter);
+        filters.put(HashType.COUNTRYCODEUCI, countryCodeUciFilter);
+        RevocationChecker checker = new RevocationChecker(filters);
+
+        int all = HashType.SIGNATURE.mask() | HashType.UCI.mask() | HashType.COUNTRYCODEUCI.mask();
+        assert checker.check(ucis[0], "DE", signatures[0], 0, 32) == (all & ~HashType.SIGNATURE.mask());
+        assert checker.check(ucis[1], "DE", signatures[1], 0, 32) == (all & ~HashType.UCI.mask());
+        assert checker.check(ucis[2], "DE", signatures[2], 0, 32) == all;
+        assert checker.check(ucis[2], "AT", signatures[2], 0, 32) == (all & ~HashType.COUNTRYCODEUCI.mask());
+        assert checker.check("unknown", "DE", signatures[2]) == 0;
+
+        filters.remove(HashType.SIGNATURE);
+        assert new RevocationChecker(filters).check(ucis[2], "DE", signatures[2], 0, 32)
+            == (all & ~HashType.SIGNATURE.mask());
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean
+            && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+            long threadId = Thread.currentThread().getId();
+            for (int i = 0; i < 100000; i++) {
+                checker.check(ucis[i % 3], "DE", signatures[i % 3], 0, 32);
+            }
+            long before = allocations.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < 100000; i++) {
+                checker.check(ucis[i % 3], "DE", signatures[i % 3], 0, 32);
+            }
+            long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+            assert allocated < 100000 : allocated;
+        }
+    }
+}